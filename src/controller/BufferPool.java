@@ -0,0 +1,208 @@
+package controller;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.PDU;
+
+/**
+ * A pool of byte arrays used for PDUs on the send and receive paths.
+ *
+ * Arrays come in power of two size classes. Each thread keeps a few arrays
+ * of every class for itself and falls back on a shared, bounded pool when
+ * it runs out or has too many.
+ * @author c12mkn
+ *
+ */
+public class BufferPool implements PDU.Recycler {
+	private static final int MIN_SHIFT = 4;
+	private static final int MAX_SHIFT = 17;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final int THREAD_LOCAL_CAPACITY = 4;
+	private static final int SHARED_CAPACITY = 64;
+
+	private static final BufferPool defaultPool = new BufferPool();
+
+	private ThreadLocal<ArrayDeque<byte[]>[]> localArrays;
+	private ConcurrentLinkedQueue<byte[]>[] sharedArrays;
+	private AtomicInteger[] sharedCounts;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong discarded;
+
+	/**
+	 * Constructs an empty BufferPool.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool() {
+		localArrays = new ThreadLocal<ArrayDeque<byte[]>[]>() {
+			@Override
+			protected ArrayDeque<byte[]>[] initialValue() {
+				ArrayDeque<byte[]>[] arrays = new ArrayDeque[CLASSES];
+				for (int i = 0; i < CLASSES; i++) {
+					arrays[i] = new ArrayDeque<byte[]>(THREAD_LOCAL_CAPACITY);
+				}
+				return arrays;
+			}
+		};
+		sharedArrays = new ConcurrentLinkedQueue[CLASSES];
+		sharedCounts = new AtomicInteger[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			sharedArrays[i] = new ConcurrentLinkedQueue<byte[]>();
+			sharedCounts[i] = new AtomicInteger();
+		}
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		discarded = new AtomicLong();
+	}
+
+	/**
+	 * Returns the pool used by PDUParser and PDUFactory.
+	 * @return the default pool.
+	 */
+	public static BufferPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Leases an array of at least the given length. Its contents are
+	 * undefined.
+	 * @param length the minimum length of the array.
+	 * @return an array that should be given back with release().
+	 */
+	public byte[] lease(int length) {
+		int sizeClass = getSizeClass(length);
+		if (sizeClass == -1) {
+			misses.incrementAndGet();
+			return new byte[length];
+		}
+
+		byte[] array = localArrays.get()[sizeClass].pollLast();
+		if (array == null) {
+			array = sharedArrays[sizeClass].poll();
+			if (array != null) {
+				sharedCounts[sizeClass].decrementAndGet();
+			}
+		}
+		if (array == null) {
+			misses.incrementAndGet();
+			return new byte[1 << (sizeClass + MIN_SHIFT)];
+		}
+		hits.incrementAndGet();
+		return array;
+	}
+
+	/**
+	 * Leases a zeroed PDU of the given length. The PDU goes back to the pool
+	 * when it's released.
+	 * @param length the length of the PDU.
+	 * @return a pooled PDU.
+	 */
+	public PDU leasePDU(int length) {
+		byte[] array = lease(length);
+		Arrays.fill(array, 0, length, (byte) 0);
+		return new PDU(array, length, this);
+	}
+
+	/**
+	 * Gives an array back to the pool. Arrays not sized like one of the
+	 * pool's classes are left to the garbage collector.
+	 * @param array an array, usually one that was leased.
+	 */
+	public void release(byte[] array) {
+		int sizeClass = getSizeClass(array.length);
+		if (sizeClass == -1 || array.length != 1 << (sizeClass + MIN_SHIFT)) {
+			return;
+		}
+
+		ArrayDeque<byte[]> local = localArrays.get()[sizeClass];
+		if (local.size() < THREAD_LOCAL_CAPACITY) {
+			local.addLast(array);
+		} else if (sharedCounts[sizeClass].incrementAndGet() <=
+				SHARED_CAPACITY) {
+			sharedArrays[sizeClass].add(array);
+		} else {
+			sharedCounts[sizeClass].decrementAndGet();
+			discarded.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void recycle(byte[] array) {
+		release(array);
+	}
+
+	/**
+	 * Returns the number of leases served from the pool.
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of leases that had to allocate a new array.
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of released arrays dropped because the pool was
+	 * full.
+	 * @return the number of discarded arrays.
+	 */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * Returns the number of arrays held by the shared pool. Arrays cached
+	 * by single threads are not counted.
+	 * @return the shared occupancy.
+	 */
+	public int getSharedOccupancy() {
+		int occupancy = 0;
+		for (AtomicInteger count : sharedCounts) {
+			occupancy += count.get();
+		}
+		return occupancy;
+	}
+
+	/**
+	 * Returns the number of bytes held by the shared pool.
+	 * @return the shared occupancy in bytes.
+	 */
+	public long getSharedBytes() {
+		long bytes = 0;
+		for (int i = 0; i < CLASSES; i++) {
+			bytes += (long) sharedCounts[i].get() << (i + MIN_SHIFT);
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() +
+				", discarded=" + getDiscarded() + ", shared=" +
+				getSharedOccupancy() + " arrays/" + getSharedBytes() +
+				" bytes]";
+	}
+
+	/**
+	 * Returns the index of the smallest size class holding the given length.
+	 * @param length a length in bytes.
+	 * @return the size class, or -1 if the length is too large to pool.
+	 */
+	private static int getSizeClass(int length) {
+		if (length <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+}
@@ -9,22 +9,22 @@ import view.GUI;
 
 /**
  * A listener class defining behaviour when the user wants to change nickname.
+ * The nickname is changed on the chat server of the selected tab, and used
+ * for the servers joined from then on.
  * @author c12mkn
  *
  */
 public class ChangeNicknameListener implements ActionListener {
-	private ConnectionHandler connectionHandler;
+	private SessionManager sessionManager;
 	private GUI gui;
 
 	/**
 	 * Constructs a ChangeNicknameListener.
-	 * @param connectionHandler a ConnectionHandler maintaining the chat clients
-	 *  connections.
+	 * @param sessionManager the sessions of the chat client.
 	 * @param gui a GUI that the prompting window will bind to.
 	 */
-	public ChangeNicknameListener(ConnectionHandler connectionHandler,
-			GUI gui) {
-		this.connectionHandler = connectionHandler;
+	public ChangeNicknameListener(SessionManager sessionManager, GUI gui) {
+		this.sessionManager = sessionManager;
 		this.gui = gui;
 	}
 
@@ -45,13 +45,16 @@ public class ChangeNicknameListener implements ActionListener {
 			JOptionPane.showMessageDialog(gui, "Nickname format not accepted",
 					"Nickname format", JOptionPane.ERROR_MESSAGE);
 			
-			/*If all went smoothly, change the nickname. If the client has 
-			 * connection at the moment, notify the chat server as well.*/
+			/*If all went smoothly, change the nickname. If the current
+			 * session has a connection at the moment, notify the chat server
+			 * as well.*/
 		} else {
-			connectionHandler.setNickname(nickname);
-			if (connectionHandler.hasConnection()) {
-				connectionHandler.sendPDU(PDUFactory.makeChangeNicknameMessage(
-						nickname));
+			sessionManager.setNickname(nickname);
+			Session current = sessionManager.getCurrent();
+			if (current != null && current.getConnectionHandler().
+					hasConnection()) {
+				current.getConnectionHandler().sendPDU(PDUFactory.
+						makeChangeNicknameMessage(nickname));
 			}
 		}
 	}
@@ -1,27 +1,83 @@
 package controller;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import model.ChatServer;
-import model.OpCodes;
 import model.PDU;
 
 /**
  * An object representing a chat server connection.
+ *
+ * A connection either uses a blocking socket read by whoever calls
+ * receivePDU(), or a non-blocking channel driven by a SelectorTransport. In
+ * the latter case received PDUs are queued for receivePDU(), or handed
+ * straight to a PDUListener if one is set.
+ *
+ * Sent PDUs of a non-blocking connection go into a bounded queue drained
+ * by the I/O thread alone, which writes as many of them as it can in one
+ * gathering write. A coalescing delay can be set to hold back the first
+ * write of a burst for a moment, so that the rest of the burst goes out
+ * with it.
  * @author c12mkn
  *
  */
 public class ChatServerConnection {
 	private static final int CONNECTION_TIMEOUT = 5000;
+	private static final int READ_BUFFER_SIZE = 8*1024;
+	private static final int DEFAULT_MAX_GATHERED_WRITES = 16;
+	private static final int DEFAULT_MAX_QUEUED_WRITES = 256;
+	private static final double LATENCY_WEIGHT = 0.125;
+
+	/*Queued by close() to wake up a thread blocked in receivePDU().*/
+	private static final PDU CLOSED = new PDU(0);
 
 	public Socket socket;
-	private DataInputStream inputStream;
+	private InputStream inputStream;
 	private DataOutputStream outputStream;
+	private ByteBuffer readBuffer;
+	private PDUParser parser;
+
+	private SocketChannel channel;
+	private SelectorTransport transport;
+	private volatile SelectionKey selectionKey;
+	private LinkedBlockingQueue<PDU> received;
+	private ConcurrentLinkedQueue<PendingWrite> pendingWrites;
+	private ByteBuffer[] gatheredWrites;
+	private AtomicInteger queuedWrites;
+	private AtomicBoolean writeRequested;
+	private volatile int maxQueuedWrites;
+	private volatile int maxGatheredWrites;
+	private volatile long coalescingDelay;
+	private AtomicBoolean closed;
+	private volatile PDUListener listener;
+	private Object drainLock;
+	private volatile boolean awaitingDrain;
+	private volatile boolean readPaused;
+	private ByteBuffer unread;
+
+	/*Statistics of the outbound queue. Apart from the queue depth and the
+	 * rejected writes they are only updated by the I/O thread.*/
+	private AtomicInteger maxQueueDepth;
+	private AtomicLong rejectedWrites;
+	private volatile long writeCalls;
+	private volatile long writtenPDUs;
+	private volatile long writtenBytes;
+	private volatile double averageWriteLatency;
+	private volatile long maxWriteLatency;
 
 	/**
 	 * Creates a chat server connection from the given information.
@@ -35,20 +91,247 @@ public class ChatServerConnection {
 		socket.connect(new InetSocketAddress(address, chatServer.getPort()),
 				CONNECTION_TIMEOUT);
 		outputStream = new DataOutputStream(socket.getOutputStream());
-		inputStream = new DataInputStream(socket.getInputStream());
+		inputStream = socket.getInputStream();
+
+		/*Read in large chunks, the parser picks the PDU's out of them.*/
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		readBuffer.limit(0);
+		parser = new PDUParser();
+		closed = new AtomicBoolean();
+	}
+
+	/**
+	 * Creates a non-blocking chat server connection driven by the given
+	 * transport.
+	 * @param chatServer a ChatServer object containing the server's address and
+	 * port.
+	 * @param transport a transport whose I/O thread will do all reading and
+	 * writing.
+	 * @throws Exception if the connection couldn't be established.
+	 */
+	public ChatServerConnection(ChatServer chatServer,
+			SelectorTransport transport) throws Exception {
+		InetAddress address = InetAddress.getByAddress(chatServer.getAddress());
+		channel = SocketChannel.open();
+		socket = channel.socket();
+		try {
+			socket.connect(new InetSocketAddress(address, chatServer.
+					getPort()), CONNECTION_TIMEOUT);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		this.transport = transport;
+		parser = new PDUParser();
+		received = new LinkedBlockingQueue<PDU>();
+		pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+		gatheredWrites = new ByteBuffer[DEFAULT_MAX_GATHERED_WRITES];
+		queuedWrites = new AtomicInteger();
+		writeRequested = new AtomicBoolean();
+		maxQueuedWrites = DEFAULT_MAX_QUEUED_WRITES;
+		maxGatheredWrites = DEFAULT_MAX_GATHERED_WRITES;
+		maxQueueDepth = new AtomicInteger();
+		drainLock = new Object();
+		rejectedWrites = new AtomicLong();
+		closed = new AtomicBoolean();
+		transport.register(channel, this);
+	}
+
+	/**
+	 * Sets a listener to receive PDUs as soon as the I/O thread has parsed
+	 * them. Only applies to connections driven by a SelectorTransport. PDUs
+	 * queued before the listener was set, and the closing of the connection
+	 * if it already happened, are handed to it first, on the I/O thread.
+	 * @param listener a PDUListener, or null to queue PDUs for receivePDU().
+	 */
+	public void setPDUListener(final PDUListener listener) {
+		if (listener == null || transport == null) {
+			this.listener = listener;
+			return;
+		}
+		transport.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatServerConnection.this.listener = listener;
+				deliverQueued();
+			}
+		});
+	}
+
+	/**
+	 * Hands the PDUs queued before the listener was set to it, until
+	 * reading is paused. Those left are handed over when it resumes. Only
+	 * called by the I/O thread.
+	 */
+	private void deliverQueued() {
+		PDUListener listener = this.listener;
+		if (listener == null) {
+			return;
+		}
+		PDU pdu;
+		try {
+			while (!readPaused && (pdu = received.poll()) != null) {
+				if (pdu == CLOSED) {
+					listener.connectionClosed(this);
+					return;
+				}
+				listener.pduReceived(this, pdu);
+			}
+		} catch (RuntimeException e) {
+
+			/*As when the listener fails on a PDU just read.*/
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops or resumes reading from the channel. While reading is paused,
+	 * received data waits in the socket buffers and TCP slows the server
+	 * down, without holding up the I/O thread or other connections. Only
+	 * applies to connections driven by a SelectorTransport.
+	 * @param paused true to pause reading, false to resume it.
+	 */
+	public void setReadPaused(boolean paused) {
+		if (transport == null || readPaused == paused) {
+			return;
+		}
+		readPaused = paused;
+		if (transport.isIOThread()) {
+			updateReadInterest();
+		} else {
+			transport.execute(new Runnable() {
+				@Override
+				public void run() {
+					updateReadInterest();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tells whether reading from the channel is paused.
+	 * @return true if reading is paused.
+	 */
+	public boolean isReadPaused() {
+		return readPaused;
+	}
+
+	/**
+	 * Watches the channel for readability unless reading is paused, and
+	 * delivers what was left unparsed when it was. Only called by the I/O
+	 * thread.
+	 */
+	private void updateReadInterest() {
+
+		/*Deliver what was left when reading was paused first, even if the
+		 * connection has been closed since. It may pause reading again.*/
+		deliverQueued();
+		SelectionKey key = selectionKey;
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		if (!readPaused && unread != null) {
+			ByteBuffer chunk = unread;
+			unread = null;
+			try {
+				parse(chunk);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+		}
+
+		if (readPaused) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		} else {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of writes that may be queued. Writes beyond
+	 * it are rejected. Only applies to connections driven by a
+	 * SelectorTransport.
+	 * @param maxQueuedWrites the maximum number of queued writes.
+	 */
+	public void setMaxQueuedWrites(int maxQueuedWrites) {
+		this.maxQueuedWrites = maxQueuedWrites;
+	}
+
+	/**
+	 * Sets the maximum number of queued writes written by one gathering
+	 * write.
+	 * @param maxGatheredWrites the maximum number of gathered writes.
+	 */
+	public void setMaxGatheredWrites(int maxGatheredWrites) {
+		this.maxGatheredWrites = Math.max(1, maxGatheredWrites);
+	}
+
+	/**
+	 * Sets how long the first write into an empty queue is held back,
+	 * waiting for more writes to gather with it.
+	 * @param coalescingDelay the delay in nanoseconds, 0 to write at once.
+	 */
+	public void setCoalescingDelay(long coalescingDelay) {
+		this.coalescingDelay = coalescingDelay;
 	}
 
 	/**
 	 * Writes a byte array of data to the socket, thus sending it to the server.
 	 * @param data a byte array of data.
+	 * @return false if the data was rejected since the queue was full.
 	 */
-	public void sendData(byte[] data) {
+	public boolean sendData(byte[] data) {
+		if (transport != null) {
+
+			/*Queue the data and let the I/O thread write it when the channel
+			 * is writable.*/
+			return queueWrite(new PendingWrite(ByteBuffer.wrap(data), null));
+		}
+
 		try {
-			outputStream.write(data);
+			synchronized (outputStream) {
+				outputStream.write(data);
+			}
 		} catch (IOException e) {
 
 			/*If data can't be written, do nothing*/
 		}
+		return true;
+	}
+
+	/**
+	 * Sends a PDU to the server without copying it. The connection takes
+	 * over the caller's reference and releases the PDU once it's written,
+	 * or at once if it's rejected.
+	 * @param pdu the PDU to be sent.
+	 * @return false if the PDU was rejected since the queue was full.
+	 */
+	public boolean sendPDU(PDU pdu) {
+		ByteBuffer buffer = pdu.asByteBuffer();
+		if (transport != null) {
+			return queueWrite(new PendingWrite(buffer, pdu));
+		}
+
+		try {
+			synchronized (outputStream) {
+				if (buffer.hasArray()) {
+					outputStream.write(buffer.array(), buffer.arrayOffset(),
+							buffer.remaining());
+				} else {
+					outputStream.write(pdu.getBytes());
+				}
+			}
+		} catch (IOException e) {
+
+			/*If data can't be written, do nothing*/
+		} finally {
+			pdu.release();
+		}
+		return true;
 	}
 
 	/**
@@ -57,47 +340,69 @@ public class ChatServerConnection {
 	 * @return a received PDU.
 	 */
 	public PDU receivePDU() {
-		PDU pdu = null;
+		if (transport != null) {
+			return takeReceivedPDU();
+		}
+
 		try {
+			while (true) {
+
+				/*Return the next PDU if the bytes read so far complete one.*/
+				PDU pdu = parser.parse(readBuffer);
+				if (pdu != null) {
+					return pdu;
+				}
 
-			/*Blocks until read is available.*/
-			int opCode = inputStream.read();
-			if (opCode == -1) {
-				socket.close();
-			}
-
-			/*Determine what kind of PDU is being received and parse it
-			 * accordingly.*/
-			switch(opCode) {
-				case OpCodes.MESSAGE:
-					pdu = PDUParser.parseMessage(inputStream);
-					break;
-				case OpCodes.QUIT:
-					pdu = PDUParser.parseQuit(inputStream);
-					break;
-				case OpCodes.UJOIN:
-					pdu = PDUParser.parseUserJoin(inputStream);
-					break;
-				case OpCodes.NICKS:
-					pdu = PDUParser.parseNicknames(inputStream);
-					break;
-				case OpCodes.ULEAVE:
-					pdu = PDUParser.parseUserLeave(inputStream);
-					break;
-				case OpCodes.UCNICK:
-					pdu = PDUParser.parseChangeNickname(inputStream);
-					break;
+				/*Blocks until read is available.*/
+				int count = inputStream.read(readBuffer.array());
+				if (count == -1) {
+					parser.reset();
+					close();
+					return null;
+				}
+				readBuffer.position(0);
+				readBuffer.limit(count);
 			}
 		} catch (IOException e) {
 			/*If an exception was thrown, close the socket if it's open
 			 * and return null;*/
+			parser.reset();
 			if (!socket.isClosed()) {
 				close();
 			}
 
 			return null;
 		}
-		return pdu;
+	}
+
+	/**
+	 * Waits until every queued write has been written, or the connection
+	 * is closed.
+	 * @param timeout the longest time to wait, in milliseconds.
+	 * @return true if nothing is left to write.
+	 */
+	public boolean awaitWritten(long timeout) {
+		if (transport == null) {
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (drainLock) {
+			awaitingDrain = true;
+			try {
+				long remaining = timeout;
+				while (!pendingWrites.isEmpty() && !closed.get() &&
+						remaining > 0) {
+					drainLock.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				awaitingDrain = false;
+			}
+		}
+		return pendingWrites.isEmpty();
 	}
 
 	/**
@@ -119,5 +424,330 @@ public class ChatServerConnection {
 			/*If a socket can't be closed, close the application*/
 			System.exit(8);
 		}
+
+		if (transport != null && closed.compareAndSet(false, true)) {
+
+			/*Nothing more will be written, give back the queued PDUs.*/
+			releasePendingWrites();
+
+			PDUListener listener = this.listener;
+			if (listener != null) {
+				listener.connectionClosed(this);
+			} else {
+				received.add(CLOSED);
+
+				/*A listener set meanwhile may have missed the marker. Whoever
+				 * takes it out tells the listener.*/
+				listener = this.listener;
+				if (listener != null && received.remove(CLOSED)) {
+					listener.connectionClosed(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives back the PDUs still queued for writing, on the I/O thread. It
+	 * may be in the middle of writing from them, so they're released only
+	 * once the key of the channel has been cancelled.
+	 */
+	private void releasePendingWrites() {
+		if (!transport.isIOThread()) {
+			transport.execute(new Runnable() {
+				@Override
+				public void run() {
+					releasePendingWrites();
+				}
+			});
+			return;
+		}
+
+		SelectionKey key = selectionKey;
+		if (key != null) {
+			key.cancel();
+		}
+		PendingWrite pendingWrite;
+		while ((pendingWrite = pendingWrites.poll()) != null) {
+			queuedWrites.decrementAndGet();
+			pendingWrite.release();
+		}
+	}
+
+	/**
+	 * Takes the next PDU queued by the I/O thread, blocking until there is
+	 * one.
+	 * @return a received PDU, or null if the connection has been closed.
+	 */
+	private PDU takeReceivedPDU() {
+		try {
+			PDU pdu = received.take();
+			if (pdu == CLOSED) {
+
+				/*Leave the marker for any other thread waiting.*/
+				received.add(CLOSED);
+				return null;
+			}
+			return pdu;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Called by the transport once the channel has been registered.
+	 * @param key the selection key of the channel.
+	 */
+	void registered(SelectionKey key) {
+		selectionKey = key;
+		updateReadInterest();
+		if (!pendingWrites.isEmpty()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Returns the selection key of the channel.
+	 * @return the selection key, or null if not yet registered.
+	 */
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+
+	/**
+	 * Called by the I/O thread when the channel is readable. Reads what is
+	 * available and parses every complete PDU received so far.
+	 * @param readBuffer a cleared buffer to read into.
+	 * @throws IOException if the channel couldn't be read or the stream
+	 * contained an unknown PDU.
+	 */
+	void handleRead(ByteBuffer readBuffer) throws IOException {
+		if (channel.read(readBuffer) == -1) {
+			parser.reset();
+			close();
+			return;
+		}
+		readBuffer.flip();
+		parse(readBuffer);
+	}
+
+	/**
+	 * Parses and delivers the PDUs of a chunk of received data until
+	 * reading is paused. What is left of the chunk then is kept until
+	 * reading resumes, since the buffer is shared by all connections.
+	 * @param chunk the received data.
+	 * @throws IOException if the data contained an unknown PDU.
+	 */
+	private void parse(ByteBuffer chunk) throws IOException {
+		PDU pdu;
+		while (!readPaused && (pdu = parser.parse(chunk)) != null) {
+			deliver(pdu);
+		}
+		if (chunk.hasRemaining()) {
+			unread = ByteBuffer.allocate(chunk.remaining());
+			unread.put(chunk).flip();
+		}
+	}
+
+	/**
+	 * Called by the I/O thread when the channel is writable. Writes as many
+	 * of the pending buffers as the channel accepts in one gathering write.
+	 * @throws IOException if the channel couldn't be written to.
+	 */
+	void handleWrite() throws IOException {
+		if (gatheredWrites.length != maxGatheredWrites) {
+			gatheredWrites = new ByteBuffer[maxGatheredWrites];
+		}
+
+		int count = 0;
+		for (PendingWrite pendingWrite : pendingWrites) {
+			if (count == gatheredWrites.length) {
+				break;
+			}
+			gatheredWrites[count++] = pendingWrite.buffer;
+		}
+		long written = channel.write(gatheredWrites, 0, count);
+		writeCalls++;
+		writtenBytes += written;
+
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (gatheredWrites[i].hasRemaining()) {
+				break;
+			}
+			PendingWrite pendingWrite = pendingWrites.poll();
+			if (pendingWrite == null) {
+				break;
+			}
+			queuedWrites.decrementAndGet();
+			recordLatency(now - pendingWrite.queued);
+			pendingWrite.release();
+		}
+		Arrays.fill(gatheredWrites, 0, count, null);
+
+		/*Stop watching for writability once everything is written, unless
+		 * more data arrived while doing so.*/
+		if (pendingWrites.isEmpty()) {
+			selectionKey.interestOps(selectionKey.interestOps() &
+					~SelectionKey.OP_WRITE);
+			writeRequested.set(false);
+			if (!pendingWrites.isEmpty() && writeRequested.compareAndSet(
+					false, true)) {
+				selectionKey.interestOps(selectionKey.interestOps() |
+						SelectionKey.OP_WRITE);
+			}
+
+			/*Wake the waiters last, they may close the connection.*/
+			if (awaitingDrain) {
+				synchronized (drainLock) {
+					drainLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues data for the I/O thread and makes sure it's watching for
+	 * writability.
+	 * @param pendingWrite the data to be written.
+	 */
+	private boolean queueWrite(PendingWrite pendingWrite) {
+		int depth = queuedWrites.incrementAndGet();
+		if (depth > maxQueuedWrites || closed.get()) {
+			queuedWrites.decrementAndGet();
+			rejectedWrites.incrementAndGet();
+			pendingWrite.release();
+			return false;
+		}
+		if (depth > maxQueueDepth.get()) {
+			maxQueueDepth.accumulateAndGet(depth, Math::max);
+		}
+
+		pendingWrites.add(pendingWrite);
+		if (closed.get()) {
+
+			/*Closed meanwhile, the queue may already have been emptied.*/
+			releasePendingWrites();
+			return false;
+		}
+		if (writeRequested.compareAndSet(false, true)) {
+			transport.requestWrite(this, coalescingDelay);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the time a write spent queued to the latency statistics.
+	 * @param latency the time from queueing to written, in nanoseconds.
+	 */
+	private void recordLatency(long latency) {
+		writtenPDUs++;
+		averageWriteLatency += LATENCY_WEIGHT * (latency -
+				averageWriteLatency);
+		if (latency > maxWriteLatency) {
+			maxWriteLatency = latency;
+		}
+	}
+
+	/**
+	 * Returns the number of writes currently queued.
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth() {
+		return transport != null ? queuedWrites.get() : 0;
+	}
+
+	/**
+	 * Returns the largest number of writes that have been queued at once.
+	 * @return the maximum queue depth.
+	 */
+	public int getMaxQueueDepth() {
+		return transport != null ? maxQueueDepth.get() : 0;
+	}
+
+	/**
+	 * Returns the number of writes rejected since the queue was full.
+	 * @return the number of rejected writes.
+	 */
+	public long getRejectedWrites() {
+		return transport != null ? rejectedWrites.get() : 0;
+	}
+
+	/**
+	 * Returns the number of gathering writes made to the channel.
+	 * @return the number of write calls.
+	 */
+	public long getWriteCalls() {
+		return writeCalls;
+	}
+
+	/**
+	 * Returns the number of queued writes fully written.
+	 * @return the number of written PDUs.
+	 */
+	public long getWrittenPDUs() {
+		return writtenPDUs;
+	}
+
+	/**
+	 * Returns the number of bytes written to the channel.
+	 * @return the number of written bytes.
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * Returns the running average of the time from queueing a write until
+	 * it's fully written.
+	 * @return the average write latency in nanoseconds.
+	 */
+	public double getAverageWriteLatency() {
+		return averageWriteLatency;
+	}
+
+	/**
+	 * Returns the longest time from queueing a write until it was fully
+	 * written.
+	 * @return the maximum write latency in nanoseconds.
+	 */
+	public long getMaxWriteLatency() {
+		return maxWriteLatency;
+	}
+
+	/**
+	 * Hands a parsed PDU to the listener, or queues it for receivePDU().
+	 * @param pdu the parsed PDU.
+	 */
+	private void deliver(PDU pdu) {
+		PDUListener listener = this.listener;
+		if (listener != null) {
+			listener.pduReceived(this, pdu);
+		} else {
+			received.add(pdu);
+		}
+	}
+
+	/**
+	 * Helper class holding queued data and the PDU it belongs to, if any.
+	 * @author c12mkn
+	 *
+	 */
+	private static class PendingWrite {
+		private ByteBuffer buffer;
+		private PDU pdu;
+		private long queued;
+
+		public PendingWrite(ByteBuffer buffer, PDU pdu) {
+			this.buffer = buffer;
+			this.pdu = pdu;
+			queued = System.nanoTime();
+		}
+
+		public void release() {
+			if (pdu != null) {
+				pdu.release();
+			}
+		}
 	}
 }
@@ -1,5 +1,10 @@
 package controller;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /* Checksum.java
  * Given fil till laboration 2 - Distribuerad Chat pa kursen Datakommunikation
  * och Datornat C, 5p vid Umea Universitet ht 2001 och vt 2002
@@ -8,6 +13,14 @@ package controller;
 
 public class Checksum {
 
+   /* Langden pa ett block av longs som kan summeras innan nagon av de
+    * fyra 16-bitars delsummorna i en long kan sla over. */
+   private static final int BLOCK_LONGS = 128;
+   private static final long LOW_BYTES = 0x00FF00FF00FF00FFL;
+
+   private static final VarHandle LONGS = MethodHandles.
+         byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
   /* Namn: calc
    * Syfte: Beraknar checksumma pa en byte-array.
    * Argument: buf   - Datat som checksumman skall beraknas pa.
@@ -15,19 +28,103 @@ public class Checksum {
    * Returnerar: checksumman som en byte.
    */
    public static byte calc(byte[] buf, int count) {
-      int sum = 0;
-      int i = 0;
-
-      while((count--) != 0) {
-         sum += (buf[i] & 0x000000FF);
-         i++;
-         if((sum & 0x00000100) != 0) {
-            sum &= 0x000000FF;
-            sum++;
+      return finish(update(0, buf, 0, count));
+   }
+
+  /* Namn: calc
+   * Syfte: Beraknar checksumma pa en del av en ByteBuffer utan att kopiera
+   *        datat. Buffertens position och limit paverkas inte.
+   * Argument: buf    - Bufferten som checksumman skall beraknas pa.
+   *           offset - Index i bufferten dar berakningen borjar.
+   *           count  - Det antal bytes som checksumman skall beraknas pa.
+   * Returnerar: checksumman som en byte.
+   */
+   public static byte calc(ByteBuffer buf, int offset, int count) {
+      if(buf.hasArray())
+         return finish(update(0, buf.array(), buf.arrayOffset() + offset,
+               count));
+
+      long total = 0;
+      int i = offset;
+      int end = offset + count;
+
+      while(end - i >= 8) {
+         long lanes = 0;
+         int stop = i + 8 * Math.min((end - i) >>> 3, BLOCK_LONGS);
+         for(; i < stop; i += 8) {
+            long x = buf.getLong(i);
+            lanes += (x & LOW_BYTES) + ((x >>> 8) & LOW_BYTES);
          }
+         total += sumLanes(lanes);
       }
+      for(; i < end; i++)
+         total += buf.get(i) & 0x000000FF;
+
+      return finish(fold(total));
+   }
 
+  /* Namn: update
+   * Syfte: Lagger till fler bytes i en pagaende summa, sa att checksumman
+   *        kan beraknas medan datat tas emot. Summan borjar pa 0 och blir
+   *        en checksumma med finish().
+   *
+   *        Att lagga till en byte i taget och flytta overslaget till
+   *        den lagsta biten ar samma sak som att ta summan modulo 255, dar
+   *        255 star for 0 sa fort nagon byte inte varit 0. Darfor kan
+   *        bytes summeras atta i taget, som fyra 16-bitars delsummor i en
+   *        long, och resultatet blir exakt detsamma.
+   * Argument: sum    - Summan hittills.
+   *           buf    - Datat som skall laggas till.
+   *           offset - Index i buf dar datat borjar.
+   *           count  - Det antal bytes som skall laggas till.
+   * Returnerar: den nya summan.
+   */
+   public static int update(int sum, byte[] buf, int offset, int count) {
+      long total = sum;
+      int i = offset;
+      int end = offset + count;
+
+      while(end - i >= 8) {
+         long lanes = 0;
+         int stop = i + 8 * Math.min((end - i) >>> 3, BLOCK_LONGS);
+         for(; i < stop; i += 8) {
+            long x = (long) LONGS.get(buf, i);
+            lanes += (x & LOW_BYTES) + ((x >>> 8) & LOW_BYTES);
+         }
+         total += sumLanes(lanes);
+      }
+      for(; i < end; i++)
+         total += buf[i] & 0x000000FF;
+
+      return fold(total);
+   }
+
+  /* Namn: finish
+   * Syfte: Gor om en summa fran update() till en checksumma.
+   * Argument: sum - Summan av allt data.
+   * Returnerar: checksumman som en byte.
+   */
+   public static byte finish(int sum) {
       return (byte)~(sum & 0xFF);
    }
-}
 
+  /* Namn: sumLanes
+   * Syfte: Summerar de fyra 16-bitars delsummorna i en long.
+   */
+   private static long sumLanes(long lanes) {
+      return (lanes & 0xFFFF) + ((lanes >>> 16) & 0xFFFF) +
+            ((lanes >>> 32) & 0xFFFF) + (lanes >>> 48);
+   }
+
+  /* Namn: fold
+   * Syfte: Gor om en vanlig summa av bytes till den summa som
+   *        byte-for-byte-berakningen med overslag hade gett.
+   */
+   private static int fold(long total) {
+      if(total == 0)
+         return 0;
+
+      int sum = (int) (total % 255);
+      return sum == 0 ? 255 : sum;
+   }
+}
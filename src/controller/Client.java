@@ -1,6 +1,5 @@
 package controller;
 
-import javax.swing.DefaultListModel;
 import javax.swing.JOptionPane;
 
 import view.GUI;
@@ -12,6 +11,8 @@ import view.GUI;
  *
  */
 public class Client {
+	private static final long SHUTDOWN_TIMEOUT = 1000;
+	private static final int PROBE_QUEUE_CAPACITY = 4;
 
 	public static void main(String[] args) {
 		new Client().go();
@@ -31,7 +32,7 @@ public class Client {
 			System.exit(2);
 		}
 
-		/*Prompt the user for a name server hostname.*/
+		/*Prompt the user for the name server hostnames.*/
 		String hostname = promptHostname();
 
 		/*Prompt the user for a port.*/
@@ -50,45 +51,62 @@ public class Client {
 			nameServerConnection =
 					new NameServerConnection(hostname, port);
 		} catch (Exception e) {
-			JOptionPane.showMessageDialog(null, "Couldn't find the name server",
+			JOptionPane.showMessageDialog(null, e.getMessage() != null ?
+					e.getMessage() : "Couldn't find the name server",
 					"Name server", JOptionPane.ERROR_MESSAGE);
 			System.exit(7);
 		}
 
-		/*Create a GUI, an Executor and a ConnectionHandler. The GUI and the
-		 * Executor are provided with a user list model.*/
-		DefaultListModel<String> userListModel = new DefaultListModel<String>();
-		GUI gui = new GUI(userListModel);
-		Executor executor = new Executor(gui, userListModel);
-		ConnectionHandler connectionHandler = new ConnectionHandler(executor,
-				nickname);
+		/*Create a GUI and a SessionManager. Every chat server joined gets a
+		 * session of its own, with a tab in the GUI.*/
+		GUI gui = new GUI();
+		SessionManager sessionManager = new SessionManager(gui, nickname);
 
 		/*Create and configure all of the listeners.*/
 		gui.getExitItem().addActionListener(new ExitWindowListener(
-				connectionHandler));
-		gui.addWindowListener(new WindowExitAdapter(connectionHandler));
+				sessionManager));
+		gui.addWindowListener(new WindowExitAdapter(sessionManager));
 		gui.getChangeNicknameItem().addActionListener(
-				new ChangeNicknameListener(connectionHandler, gui));
+				new ChangeNicknameListener(sessionManager, gui));
+		ServerListCache serverListCache = new ServerListCache(
+				nameServerConnection);
+		LatencyProber latencyProber = new LatencyProber();
+		serverListCache.getChangeBus().subscribe(latencyProber, TaskExecutor.
+				getDefault().named("Latency probes"), PROBE_QUEUE_CAPACITY,
+				EventBus.DROP_OLDEST);
+		ConnectionPool connectionPool = new ConnectionPool();
+		sessionManager.setReconnectSupervisor(new ReconnectSupervisor(
+				connectionPool));
+		sessionManager.setConnectionPool(connectionPool);
 		gui.getServerListItem().addActionListener(new ListServersListener(gui,
-				nameServerConnection, connectionHandler));
+				serverListCache, latencyProber, connectionPool, sessionManager,
+				false));
+		gui.getNewSessionItem().addActionListener(new ListServersListener(gui,
+				serverListCache, latencyProber, connectionPool, sessionManager,
+				true));
+		gui.getLeaveServerItem().addActionListener(new LeaveServerListener(
+				sessionManager));
 		SendButtonListener sendButtonListener = new SendButtonListener(
-				connectionHandler, gui);
+				sessionManager, gui);
 		gui.getEncryptCheckbox().addActionListener(new EncryptCheckboxListener(
 				sendButtonListener));
 		gui.getEncryptionKeyItem().addActionListener(
-				new EncryptionKeyListener(executor, sendButtonListener,
+				new EncryptionKeyListener(sessionManager, sendButtonListener,
 						gui));
 		gui.getCompressCheckbox().addActionListener(
 				new CompressCheckboxListener(sendButtonListener));
 		gui.getSendButton().addActionListener(sendButtonListener);
 
-		/*Set the GUI visible.*/
+		/*Set the GUI visible, and fetch the server list while the user
+		 * looks at it.*/
 		gui.setVisible(true);
+		serverListCache.refresh();
 	}
 
 	/**
-	 * Prompts the user for a name server port. Exits the program if the user
-	 * doesn't enter anything or enters something incorrect.
+	 * Prompts the user for the port of the name servers given without one.
+	 * Exits the program if the user doesn't enter anything or enters
+	 * something incorrect.
 	 * @return the port provided.
 	 */
 	private int promptPort() {
@@ -113,14 +131,14 @@ public class Client {
 	}
 
 	/**
-	 * Prompts the user for a hostname. Exits if the user doesn't enter
-	 * anything.
-	 * @return the hostname provided.
+	 * Prompts the user for one or more name server hostnames. Exits if the
+	 * user doesn't enter anything.
+	 * @return the hostnames provided.
 	 */
 	private String promptHostname() {
 		String hostname =  JOptionPane.showInputDialog(null, "Enter name " +
-				"server hostname: ", "Name server", JOptionPane.
-				QUESTION_MESSAGE);
+				"server hostnames (comma separated, each optionally with " +
+				":port): ", "Name server", JOptionPane.QUESTION_MESSAGE);
 		if (hostname == null || hostname.length() == 0) {
 			JOptionPane.showMessageDialog(null, "You didn't enter anything.",
 					"Name server", JOptionPane.ERROR_MESSAGE);
@@ -148,6 +166,17 @@ public class Client {
 		return nickname;
 	}
 
+	/**
+	 * Leaves every chat server and stops all background work, before the
+	 * application exits.
+	 * @param sessionManager the sessions of the application.
+	 */
+	static void shutdown(SessionManager sessionManager) {
+		sessionManager.leaveAll(SHUTDOWN_TIMEOUT);
+		TaskExecutor.getDefault().shutdown(SHUTDOWN_TIMEOUT);
+		SelectorTransport.shutdownDefault();
+	}
+
 	/**
 	 * Returns the padded length of any number of lengths. For example, if
 	 * 3 and 3 are sent as parameters, the function returns 8.
@@ -0,0 +1,139 @@
+package controller;
+
+import model.OpCodes;
+import model.PDU;
+
+/**
+ * A table of PDUCodecs indexed by op code.
+ * @author c12mkn
+ *
+ */
+public class CodecRegistry {
+	private static final CodecRegistry defaultRegistry = createDefault();
+
+	private PDUCodec[] codecs;
+
+	/**
+	 * Constructs an empty CodecRegistry.
+	 */
+	public CodecRegistry() {
+		codecs = new PDUCodec[256];
+	}
+
+	/**
+	 * Returns the registry holding the codecs of the chat protocol.
+	 * @return the default registry.
+	 */
+	public static CodecRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * Registers a codec, replacing any codec previously registered for the
+	 * same op code.
+	 * @param codec the codec to be registered.
+	 */
+	public void register(PDUCodec codec) {
+		codecs[codec.getOpCode()] = codec;
+	}
+
+	/**
+	 * Returns the codec of an op code.
+	 * @param opCode an op code.
+	 * @return the codec, or null if the op code is unknown.
+	 */
+	public PDUCodec get(int opCode) {
+		return codecs[opCode & 0xFF];
+	}
+
+	/**
+	 * Creates a registry holding the codecs of the PDU's sent by chat
+	 * servers.
+	 * @return a new registry.
+	 */
+	private static CodecRegistry createDefault() {
+		CodecRegistry registry = new CodecRegistry();
+
+		registry.register(new PDUCodec(OpCodes.MESSAGE, 12) {
+			@Override
+			public int getLength(byte[] header) {
+				return 12 + Client.getPaddedLength(header[2] & 0xFF,
+						(header[4] & 0xFF) << 8 | header[5] & 0xFF);
+			}
+
+			@Override
+			public boolean isChecked() {
+				return true;
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.displayMessage(pdu);
+			}
+		});
+
+		registry.register(new PDUCodec(OpCodes.QUIT, 4) {
+			@Override
+			public int getLength(byte[] header) {
+				return 4;
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.processQuit(pdu);
+			}
+		});
+
+		registry.register(new PDUCodec(OpCodes.UJOIN, 8) {
+			@Override
+			public int getLength(byte[] header) {
+				return 8 + Client.getPaddedLength(header[1] & 0xFF);
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.processUserJoin(pdu);
+			}
+		});
+
+		registry.register(new PDUCodec(OpCodes.ULEAVE, 8) {
+			@Override
+			public int getLength(byte[] header) {
+				return 8 + Client.getPaddedLength(header[1] & 0xFF);
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.processUserLeave(pdu);
+			}
+		});
+
+		registry.register(new PDUCodec(OpCodes.UCNICK, 8) {
+			@Override
+			public int getLength(byte[] header) {
+				return 8 + Client.getPaddedLength(header[1] & 0xFF,
+						header[2] & 0xFF);
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.processChangeNickname(pdu);
+			}
+		});
+
+		registry.register(new PDUCodec(OpCodes.NICKS, 4) {
+			@Override
+			public int getLength(byte[] header) {
+				return 4 + Client.getPaddedLength((header[2] & 0xFF) << 8 |
+						header[3] & 0xFF);
+			}
+
+			@Override
+			public void handle(Executor executor, PDU pdu) {
+				executor.processNicknames(pdu);
+			}
+		});
+
+		return registry;
+	}
+}
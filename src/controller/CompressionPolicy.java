@@ -0,0 +1,279 @@
+package controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import model.CompressAlgorithms;
+import model.CryptAlgorithms;
+import model.MsgTypes;
+import model.PDU;
+
+/**
+ * Decides, message by message, whether compressing a message is worth it
+ * and how it should be compressed.
+ *
+ * Short messages are never compressed, since the GZIP header and trailer
+ * and the compressed message header would make them larger. Longer
+ * messages that look like random data from a sample of their bytes are
+ * skipped as well. Everything else is compressed, and the result is only
+ * used if it's actually smaller than the plain message. The ratio and
+ * compression time of recent messages are kept as running averages. When
+ * compression stops paying off, only every PROBE_INTERVAL:th message is
+ * tried. When compression gets slow, the fastest level is used.
+ * @author c12mkn
+ *
+ */
+public class CompressionPolicy {
+	private static final int MIN_LENGTH = 64;
+	private static final int MIN_FAST_LENGTH = 32;
+	private static final int FAST_MAX_LENGTH = 1024;
+	private static final int LARGE_LENGTH = 8192;
+	private static final int ENTROPY_SAMPLE = 256;
+	private static final double ENTROPY_LIMIT = 6.5;
+	private static final double RATIO_LIMIT = 0.9;
+	private static final int PROBE_INTERVAL = 16;
+	private static final long LATENCY_BUDGET_NANOS = 1000000;
+	private static final double WEIGHT = 0.125;
+
+	private static final int CRYPT_ALGORITHM = CryptAlgorithms.STANDARD;
+
+	private boolean fastAllowed;
+	private double ratio;
+	private double nanosPerByte;
+	private int skipsSinceProbe;
+
+	private AtomicLong compressed;
+	private AtomicLong skippedShort;
+	private AtomicLong skippedEntropy;
+	private AtomicLong skippedRatio;
+	private AtomicLong notWorth;
+	private AtomicLong bytesSaved;
+
+	/**
+	 * Constructs a CompressionPolicy that only uses GZIP.
+	 */
+	public CompressionPolicy() {
+		compressed = new AtomicLong();
+		skippedShort = new AtomicLong();
+		skippedEntropy = new AtomicLong();
+		skippedRatio = new AtomicLong();
+		notWorth = new AtomicLong();
+		bytesSaved = new AtomicLong();
+	}
+
+	/**
+	 * Sets whether the LZ4 algorithm may be used for short messages and
+	 * when GZIP is too slow. Only clients of this kind can read LZ4
+	 * messages, so it's not used by default.
+	 * @param fastAllowed true if LZ4 may be used.
+	 */
+	public void setFastAlgorithmAllowed(boolean fastAllowed) {
+		this.fastAllowed = fastAllowed;
+	}
+
+	/**
+	 * Returns a message PDU of a message, compressed if that pays off and
+	 * encrypted if a key is given.
+	 * @param message the message in bytes.
+	 * @param compress true if the message should be compressed when that
+	 * pays off.
+	 * @param cryptKey the encryption key to be used, or null if the message
+	 * shouldn't be encrypted.
+	 * @return a message PDU of type TEXT, COMP, CRYPT or COMPCRYPT.
+	 * @throws Exception if the message couldn't be compressed.
+	 */
+	public PDU makeMessage(byte[] message, boolean compress, String cryptKey)
+			throws Exception {
+		boolean encrypt = cryptKey != null;
+
+		/*The length of what would be sent instead of a compressed PDU.*/
+		int plainLength = (encrypt ? 8 : 0) + Client.getPaddedLength(
+				message.length);
+
+		PDU inner = compress ? compress(message, plainLength) : null;
+		int type;
+		if (inner != null) {
+			type = encrypt ? MsgTypes.COMPCRYPT : MsgTypes.COMP;
+			if (encrypt) {
+				PDU encrypted = PDUFactory.makeEncryptedMessage(
+						CRYPT_ALGORITHM, inner, cryptKey);
+				inner.release();
+				inner = encrypted;
+			}
+		} else if (encrypt) {
+			type = MsgTypes.CRYPT;
+			inner = PDUFactory.makeEncryptedMessage(CRYPT_ALGORITHM, message,
+					cryptKey);
+		} else {
+			return PDUFactory.makeMessage(MsgTypes.TEXT, message);
+		}
+
+		PDU pdu = PDUFactory.makeMessage(type, inner);
+		inner.release();
+		return pdu;
+	}
+
+	/**
+	 * Compresses a message if the policy says it's worth it.
+	 * @param message the message in bytes.
+	 * @param plainLength the length the message takes up uncompressed.
+	 * @return a compressed message PDU, or null if the message should be
+	 * sent uncompressed.
+	 * @throws Exception if the message couldn't be compressed.
+	 */
+	private PDU compress(byte[] message, int plainLength) throws Exception {
+		int length = message.length;
+		if (length < (fastAllowed ? MIN_FAST_LENGTH : MIN_LENGTH)) {
+			skippedShort.incrementAndGet();
+			return null;
+		}
+		if (length >= ENTROPY_SAMPLE && estimateEntropy(message) >
+				ENTROPY_LIMIT) {
+			skippedEntropy.incrementAndGet();
+			return null;
+		}
+
+		int algorithm = CompressAlgorithms.GZIP;
+		int level = GZIP.DEFAULT_LEVEL;
+		synchronized (this) {
+			if (ratio > RATIO_LIMIT && ++skipsSinceProbe < PROBE_INTERVAL) {
+				skippedRatio.incrementAndGet();
+				return null;
+			}
+			skipsSinceProbe = 0;
+
+			boolean slow = nanosPerByte * length > LATENCY_BUDGET_NANOS;
+			if (fastAllowed && (length < FAST_MAX_LENGTH || slow)) {
+				algorithm = CompressAlgorithms.LZ4;
+			} else if (slow || length >= LARGE_LENGTH) {
+				level = Deflater.BEST_SPEED;
+			}
+		}
+
+		long start = System.nanoTime();
+		PDU pdu = PDUFactory.makeCompressedMessage(algorithm, message, level);
+		long elapsed = System.nanoTime() - start;
+		record((double) pdu.length() / plainLength, (double) elapsed /
+				length);
+
+		if (pdu.length() >= plainLength) {
+			pdu.release();
+			notWorth.incrementAndGet();
+			return null;
+		}
+		compressed.incrementAndGet();
+		bytesSaved.addAndGet(plainLength - pdu.length());
+		return pdu;
+	}
+
+	/**
+	 * Adds the outcome of a compression to the running averages.
+	 * @param messageRatio the compressed length divided by the plain length.
+	 * @param messageNanosPerByte the compression time per byte.
+	 */
+	private synchronized void record(double messageRatio,
+			double messageNanosPerByte) {
+		ratio += WEIGHT * (messageRatio - ratio);
+		nanosPerByte += WEIGHT * (messageNanosPerByte - nanosPerByte);
+	}
+
+	/**
+	 * Estimates the entropy of a message from evenly spread sample bytes.
+	 * @param message a message of at least ENTROPY_SAMPLE bytes.
+	 * @return the estimated entropy in bits per byte.
+	 */
+	private static double estimateEntropy(byte[] message) {
+		int[] counts = new int[256];
+		int step = message.length / ENTROPY_SAMPLE;
+		for (int i = 0; i < ENTROPY_SAMPLE; i++) {
+			counts[message[i * step] & 0xFF]++;
+		}
+
+		double entropy = 0;
+		for (int count : counts) {
+			if (count != 0) {
+				double p = (double) count / ENTROPY_SAMPLE;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Returns the number of messages sent compressed.
+	 * @return the number of compressed messages.
+	 */
+	public long getCompressed() {
+		return compressed.get();
+	}
+
+	/**
+	 * Returns the number of messages too short to be worth compressing.
+	 * @return the number of short messages.
+	 */
+	public long getSkippedShort() {
+		return skippedShort.get();
+	}
+
+	/**
+	 * Returns the number of messages not compressed because they looked like
+	 * random data.
+	 * @return the number of high entropy messages.
+	 */
+	public long getSkippedEntropy() {
+		return skippedEntropy.get();
+	}
+
+	/**
+	 * Returns the number of messages not compressed because recent messages
+	 * didn't compress well.
+	 * @return the number of messages skipped for the running ratio.
+	 */
+	public long getSkippedRatio() {
+		return skippedRatio.get();
+	}
+
+	/**
+	 * Returns the number of messages that were compressed, but sent plain
+	 * since compressing made them larger.
+	 * @return the number of messages not worth compressing.
+	 */
+	public long getNotWorth() {
+		return notWorth.get();
+	}
+
+	/**
+	 * Returns the number of bytes saved by compressing messages.
+	 * @return the number of bytes saved.
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/**
+	 * Returns the running average of compressed length divided by plain
+	 * length.
+	 * @return the compression ratio.
+	 */
+	public synchronized double getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * Returns the running average of compression time per byte.
+	 * @return the compression time in nanoseconds per byte.
+	 */
+	public synchronized double getNanosPerByte() {
+		return nanosPerByte;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionPolicy[compressed=" + getCompressed() +
+				", short=" + getSkippedShort() + ", entropy=" +
+				getSkippedEntropy() + ", ratio=" + getSkippedRatio() +
+				", notWorth=" + getNotWorth() + ", saved=" + getBytesSaved() +
+				" bytes, averageRatio=" + getRatio() + ", nanosPerByte=" +
+				getNanosPerByte() + "]";
+	}
+}
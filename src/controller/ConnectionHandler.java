@@ -1,129 +1,367 @@
 package controller;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import model.PDU;
 
 /**
  * A class designed to handle a TCP connection between the server and the
  * client.
+ *
+ * New connections and aborts arrive as events on the connection and abort
+ * buses, and every received PDU is published on the PDU bus. A connection
+ * lost without the user leaving, because it dropped or its server quit,
+ * is published on the lost bus.
+ *
+ * The handler is a state machine. It is IDLE without a connection, and
+ * CONNECTING once it has asked a first server to join, or SWITCHING when
+ * it left another one for it. The first PDU of the server makes it JOINED.
+ * Quitting makes it CLOSING until the connection has been closed. Every
+ * transition is a compare-and-set of an immutable state, so transitions
+ * made by the user, by the event thread and by the I/O thread never
+ * overwrite each other. PDUs and closings are handed to the handler by the
+ * I/O thread as they happen, nothing waits or polls for them.
  * @author c12mkn
  *
  */
-public class ConnectionHandler extends Observable implements Observer {
-	private String nickname;
-	private ChatServerConnection connection;
-	private ArrayList<ChatServerConnection> previousConnections;
+public class ConnectionHandler {
+	public static final int IDLE = 0;
+	public static final int CONNECTING = 1;
+	public static final int SWITCHING = 2;
+	public static final int JOINED = 3;
+	public static final int CLOSING = 4;
+
+	private static final int EVENT_CAPACITY = 16;
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	private volatile String nickname;
+	private AtomicReference<State> state;
+	private PDUListener listener;
+	private EventBus<ChatServerConnection> connectionBus;
+	private EventBus<ChatServerConnection> abortBus;
+	private EventBus<ChatServerConnection> lostBus;
+	private EventBus<PDUEvent> pduBus;
+	private CopyOnWriteArrayList<Backlog> backlogs;
+
+	/**
+	 * A flow controlled subscription to the PDU bus, with the backlogs at
+	 * which reading is paused and resumed.
+	 * @author c12mkn
+	 *
+	 */
+	private class Backlog {
+		private EventBus<PDUEvent>.Subscription subscription;
+		private int pauseAt;
+		private int resumeAt;
+	}
+
+	/**
+	 * A phase of the handler together with its connection. Never changed,
+	 * a transition replaces it.
+	 * @author c12mkn
+	 *
+	 */
+	private static class State {
+		private final int phase;
+		private final ChatServerConnection connection;
+
+		/**
+		 * Constructs a State.
+		 * @param phase the phase.
+		 * @param connection the current connection, or null if there is
+		 * none.
+		 */
+		private State(int phase, ChatServerConnection connection) {
+			this.phase = phase;
+			this.connection = connection;
+		}
+	}
 
 	/**
 	 * Constructs a ConnectionHandler.
-	 * @param observer an observer object to be notified when receiving a PDU.
 	 * @param nickname a nickname for the user using the client.
 	 */
-	public ConnectionHandler(Observer observer, String nickname) {
-		addObserver(observer);
+	public ConnectionHandler(String nickname) {
 		this.nickname = nickname;
-		connection = null;
-		previousConnections = new ArrayList<ChatServerConnection>();
-	}
-
-	/*When a first/new chat server is chosen by the user, this piece of code
-	 * runs. The received Object should be a ChatServerConnection.*/
-	@Override
-	public void update(Observable observable, Object object) {
-
-		/*If a previous connection didn't exist, set the provided one as
-		 * the currrent and start listening.*/
-		if (connection == null) {
-			connection = (ChatServerConnection) object;
-			startListening();
-
-			/*If a previous connection did exist, add it to a list of
-			 * connections to be closed, send out a quit message and
-			 * change the current connection to the provided one.*/
-		} else {
-			addToPreviousConnections(connection);
-			sendPDU(PDUFactory.makeQuit());
-			connection = (ChatServerConnection) object;
-		}
+		state = new AtomicReference<State>(new State(IDLE, null));
+		connectionBus = new EventBus<ChatServerConnection>("Connections");
+		abortBus = new EventBus<ChatServerConnection>("Aborts");
+		lostBus = new EventBus<ChatServerConnection>("Lost connections");
+		pduBus = new EventBus<PDUEvent>("PDUs", PDUEvent.SHARING);
+		backlogs = new CopyOnWriteArrayList<Backlog>();
+
+		/*Called on the I/O thread, for every connection of the handler.*/
+		listener = new PDUListener() {
+			@Override
+			public void pduReceived(ChatServerConnection connection, PDU pdu) {
+				received(connection, pdu);
+			}
 
-		/*Send out a join request to the new server.*/
-		sendPDU(PDUFactory.makeJoinRequest(nickname.getBytes(StandardCharsets.
-				UTF_8)));
+			@Override
+			public void connectionClosed(ChatServerConnection connection) {
+				closed(connection);
+			}
+		};
+
+		/*Handle connections and aborts one at a time, in the order they
+		 * were published.*/
+		java.util.concurrent.Executor events = TaskExecutor.getDefault().
+				named("Connection events");
+		connectionBus.subscribe(new EventBus.Subscriber<ChatServerConnection>() {
+			@Override
+			public void onEvent(ChatServerConnection newConnection) {
+				switchTo(newConnection);
+			}
+		}, events, EVENT_CAPACITY, EventBus.BLOCK);
+		abortBus.subscribe(new EventBus.Subscriber<ChatServerConnection>() {
+			@Override
+			public void onEvent(ChatServerConnection source) {
+				abortConnection(source);
+			}
+		}, events, EVENT_CAPACITY, EventBus.BLOCK);
+	}
+
+	/**
+	 * Returns the bus on which new connections chosen by the user are
+	 * published.
+	 * @return the connection bus.
+	 */
+	public EventBus<ChatServerConnection> getConnectionBus() {
+		return connectionBus;
+	}
+
+	/**
+	 * Returns the bus on which the connection to abort is published when
+	 * its server quits.
+	 * @return the abort bus.
+	 */
+	public EventBus<ChatServerConnection> getAbortBus() {
+		return abortBus;
 	}
 
 	/**
-	 * Used externally to abort the current connection.
+	 * Returns the bus on which connections are published when they are
+	 * lost without the user leaving their servers.
+	 * @return the lost bus.
 	 */
-	public void abortConnection() {
-		addToPreviousConnections(connection);
-		connection = null;
+	public EventBus<ChatServerConnection> getLostBus() {
+		return lostBus;
 	}
 
 	/**
-	 * Starts a new thread that will always listen to the current connection
-	 * and take appropriate action depending on the received PDUs.
+	 * Returns the bus on which received PDUs are published.
+	 * @return the PDU bus.
 	 */
-	private void startListening() {
-		new Thread() {
+	public EventBus<PDUEvent> getPDUBus() {
+		return pduBus;
+	}
+
+	/**
+	 * Subscribes to the received PDUs without ever holding up the I/O
+	 * thread, which is shared by all connections. Once the subscriber is
+	 * half its capacity behind, reading the current connection is paused
+	 * until it has caught up to a quarter of it. Only if a single read
+	 * holds more PDUs than the rest of the capacity are any dropped.
+	 * @param subscriber the subscriber.
+	 * @param deliveryExecutor the executor running the deliveries.
+	 * @param capacity the number of PDUs that may be queued for the
+	 * subscriber.
+	 * @return the subscription, which may be closed to unsubscribe.
+	 */
+	public EventBus<PDUEvent>.Subscription subscribeToPDUs(
+			final EventBus.Subscriber<? super PDUEvent> subscriber,
+			java.util.concurrent.Executor deliveryExecutor, int capacity) {
+		final Backlog backlog = new Backlog();
+		backlog.pauseAt = Math.max(1, capacity / 2);
+		backlog.resumeAt = capacity / 4;
+		backlog.subscription = pduBus.subscribe(
+				new EventBus.Subscriber<PDUEvent>() {
 			@Override
-			public void run() {
-				while (true) {
-
-					/*If there are previous connections, see to it that they
-					 * are closed.*/
-					if (previousConnections.size() > 0) {
-						closePreviousConnections();
-					}
-
-					/*If the current connection has been closed, set it
-					 * to null.*/
-
-					if (connection.isClosed()) {
-						connection = null;
-					}
-
-					/*If there is no current connection, kill the thread.*/
-					if (!hasConnection()) {
-						break;
-					}
-
-					/*If there is a current connection, receive a PDU and
-					 * notify all observers (usually only an Executor object.)*/
-					PDU pdu = connection.receivePDU();
-					if (pdu != null) {
-						setChanged();
-						notifyObservers(pdu);
-						clearChanged();
-					}
-				}
+			public void onEvent(PDUEvent event) {
+				subscriber.onEvent(event);
+				caughtUp();
 			}
-		}.start();
+		}, deliveryExecutor, capacity, EventBus.DROP_NEWEST);
+		backlogs.add(backlog);
+		return backlog.subscription;
+	}
+
+	/**
+	 * Makes a new connection the current one and joins its server. Runs
+	 * when a first or new chat server is chosen by the user.
+	 * @param newConnection the new connection.
+	 */
+	private void switchTo(ChatServerConnection newConnection) {
+		State current;
+		State next;
+		do {
+			current = state.get();
+			next = new State(current.connection == null ? CONNECTING :
+					SWITCHING, newConnection);
+		} while (!state.compareAndSet(current, next));
+
+		/*Leave the previous server, and close the connection as soon as
+		 * the quit message is out. Its PDUs and its closing are no longer
+		 * the handler's concern.*/
+		if (current.connection != null && current.phase != CLOSING) {
+			current.connection.sendPDU(PDUFactory.makeQuit());
+			closeWhenWritten(current.connection);
+		}
+
+		/*Send out a join request to the new server, and hear what it
+		 * answers. Anything it sent before is handed over first.*/
+		newConnection.sendPDU(PDUFactory.makeJoinRequest(nickname.getBytes(
+				StandardCharsets.UTF_8)));
+		newConnection.setPDUListener(listener);
+	}
+
+	/**
+	 * Aborts a connection whose server quit, if it's still the current one.
+	 * @param source the connection the server quit on.
+	 */
+	private void abortConnection(ChatServerConnection source) {
+		State current = state.get();
+		if (current.connection != source || current.phase == CLOSING) {
+			return;
+		}
+		if (state.compareAndSet(current, new State(IDLE, null))) {
+			source.close();
+			lostBus.publish(source);
+		}
 	}
 
 	/**
-	 * Closes all previous connections if they are not already closed.
+	 * Publishes a PDU received on the current connection. The first one
+	 * shows that the server has been joined. PDUs still arriving on a
+	 * connection that has been replaced are dropped.
+	 * @param connection the connection the PDU was received on.
+	 * @param pdu the received PDU.
 	 */
-	private void closePreviousConnections() {
-		synchronized (previousConnections) {
-			for (ChatServerConnection connection : previousConnections) {
-				if (!connection.isClosed()) {
-					connection.close();
+	private void received(ChatServerConnection connection, PDU pdu) {
+		State current = state.get();
+		if (current.connection == connection) {
+			if (current.phase == CONNECTING || current.phase == SWITCHING) {
+				state.compareAndSet(current, new State(JOINED, connection));
+			}
+			pduBus.publish(new PDUEvent(connection, pdu));
+
+			/*Leave the rest in the socket while a subscriber is behind. The
+			 * subscriber may have caught up before the pause was visible to
+			 * it, so check again once it is.*/
+			for (Backlog backlog : backlogs) {
+				if (backlog.subscription.getQueueDepth() >= backlog.pauseAt) {
+					connection.setReadPaused(true);
+					caughtUp();
+					break;
 				}
 			}
-			previousConnections.clear();
 		}
+
+		/*Every subscriber has a reference of its own, give back this
+		 * one.*/
+		pdu.release();
+	}
+
+	/**
+	 * Forgets a closed connection if it's still the current one. Unless it
+	 * was being quit, it dropped.
+	 * @param connection the closed connection.
+	 */
+	private void closed(ChatServerConnection connection) {
+		State current;
+		do {
+			current = state.get();
+			if (current.connection != connection) {
+				return;
+			}
+		} while (!state.compareAndSet(current, new State(IDLE, null)));
+
+		if (current.phase != CLOSING) {
+			lostBus.publish(connection);
+		}
+	}
+
+	/**
+	 * Resumes reading the current connection once every flow controlled
+	 * subscriber has caught up. Called after each delivered PDU, and after
+	 * pausing.
+	 */
+	private void caughtUp() {
+		ChatServerConnection connection = state.get().connection;
+		if (connection == null || !connection.isReadPaused()) {
+			return;
+		}
+		for (Backlog backlog : backlogs) {
+			if (backlog.subscription.getQueueDepth() > backlog.resumeAt) {
+				return;
+			}
+		}
+		connection.setReadPaused(false);
 	}
 
 	/**
-	 * Sends a PDU to the current chat server.
+	 * Closes a connection in the background once its queued PDUs have been
+	 * written, or after CLOSE_TIMEOUT.
+	 * @param connection the connection to close.
+	 */
+	private void closeWhenWritten(final ChatServerConnection connection) {
+		Runnable close = new Runnable() {
+			@Override
+			public void run() {
+				connection.awaitWritten(CLOSE_TIMEOUT);
+				connection.close();
+			}
+		};
+		if (TaskExecutor.getDefault().submit("Close connection", close) ==
+				null) {
+			close.run();
+		}
+	}
+
+	/**
+	 * Queues a PDU for the writer of the current chat server connection.
+	 * Doesn't block, so it may be called from the Swing thread. The PDU is
+	 * released once it has been written, or at once if it can't be sent.
 	 * @param pdu a PDU object to be sent.
+	 * @return false if there is no connection or too many PDUs are already
+	 * waiting to be written.
 	 */
-	public synchronized void sendPDU(PDU pdu) {
-		connection.sendData(pdu.getBytes());
+	public boolean sendPDU(PDU pdu) {
+		State current = state.get();
+		if (current.connection == null || current.phase == CLOSING) {
+			pdu.release();
+			return false;
+		}
+		return current.connection.sendPDU(pdu);
+	}
+
+	/**
+	 * Sends a quit message to the current chat server, if any, and closes
+	 * the connection once the message has been written.
+	 * @param timeout the longest time to wait for the message to be
+	 * written, in milliseconds.
+	 */
+	public void quit(long timeout) {
+		State current;
+		State closing;
+		do {
+			current = state.get();
+			if (current.connection == null || current.phase == CLOSING) {
+				return;
+			}
+			closing = new State(CLOSING, current.connection);
+		} while (!state.compareAndSet(current, closing));
+
+		ChatServerConnection connection = current.connection;
+		connection.sendPDU(PDUFactory.makeQuit());
+		connection.awaitWritten(timeout);
+		connection.close();
+
+		/*Closing it made the handler IDLE, unless it's driven by no
+		 * transport.*/
+		state.compareAndSet(closing, new State(IDLE, null));
 	}
 
 	/**
@@ -132,25 +370,23 @@ public class ConnectionHandler extends Observable implements Observer {
 	 * @return true if there is a connection, else false.
 	 */
 	public boolean hasConnection() {
-		return connection != null;
+		State current = state.get();
+		return current.connection != null && current.phase != CLOSING;
 	}
 
 	/**
-	 * Sets the nickname that will be used when connecting to new servers.
-	 * @param nickname a nickname.
+	 * Returns the phase of the handler.
+	 * @return IDLE, CONNECTING, SWITCHING, JOINED or CLOSING.
 	 */
-	public void setNickname(String nickname) {
-		this.nickname = nickname;
+	public int getState() {
+		return state.get().phase;
 	}
 
 	/**
-	 * Adds a ChatServerConnection object to a list of previous connections
-	 * to be closed.
-	 * @param connection a ChatServerConnection to be closed.
+	 * Sets the nickname that will be used when connecting to new servers.
+	 * @param nickname a nickname.
 	 */
-	private void addToPreviousConnections(ChatServerConnection connection) {
-		synchronized (previousConnections) {
-			previousConnections.add(connection);
-		}
+	public void setNickname(String nickname) {
+		this.nickname = nickname;
 	}
 }
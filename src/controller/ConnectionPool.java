@@ -0,0 +1,298 @@
+package controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import model.ChatServer;
+
+/**
+ * Keeps connections to the chat servers the user is likely to switch to
+ * next, so that switching only costs the round trip of a JOIN.
+ *
+ * A warm connection is connected but hasn't joined its server. Connections
+ * are warmed in the background for the servers asked for, such as the
+ * closest one while the user is choosing, or the server a session has
+ * just switched away from. At most MAX_WARM connections are kept, the
+ * least recently warmed going first, and a warm connection not taken
+ * within the idle time is closed. Taking a connection for a server
+ * without a warm one connects at once, as before.
+ * @author c12mkn
+ *
+ */
+public class ConnectionPool {
+	public static final long DEFAULT_IDLE_TIME = 60000;
+	private static final int MAX_WARM = 3;
+	private static final int MAX_CONNECTING = 2;
+
+	private TaskExecutor executor;
+	private Semaphore connectLimit;
+	private volatile long idleTime;
+
+	/*Guarded by the pool itself. Ordered from the least to the most
+	 * recently warmed.*/
+	private LinkedHashMap<String, Entry> entries;
+	private boolean sweepScheduled;
+	private long hits;
+	private long misses;
+
+	/**
+	 * A warm connection, or one being warmed.
+	 * @author c12mkn
+	 *
+	 */
+	private static class Entry {
+		private ChatServerConnection connection;
+		private boolean connecting = true;
+		private long expires;
+	}
+
+	/**
+	 * Constructs an empty ConnectionPool with the default idle time.
+	 */
+	public ConnectionPool() {
+		executor = TaskExecutor.getDefault();
+		connectLimit = new Semaphore(MAX_CONNECTING);
+		entries = new LinkedHashMap<String, Entry>();
+		idleTime = DEFAULT_IDLE_TIME;
+	}
+
+	/**
+	 * Sets how long a warm connection is kept without being taken.
+	 * @param idleTime the idle time in milliseconds.
+	 */
+	public void setIdleTime(long idleTime) {
+		this.idleTime = idleTime;
+	}
+
+	/**
+	 * Returns a connection to a chat server, warm if there is one. A
+	 * connection being warmed is waited for.
+	 * @param chatServer the chat server.
+	 * @return a connection that hasn't joined the server.
+	 * @throws Exception if the connection couldn't be established.
+	 */
+	public ChatServerConnection take(ChatServer chatServer) throws Exception {
+		ChatServerConnection connection = null;
+		synchronized (this) {
+			String key = chatServer.getEndpoint();
+			Entry entry = entries.get(key);
+			while (entry != null && entry.connecting) {
+				wait();
+				entry = entries.get(key);
+			}
+			if (entry != null) {
+				entries.remove(key);
+				if (!entry.connection.isClosed()) {
+					connection = entry.connection;
+				}
+			}
+			if (connection != null) {
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+
+		if (connection == null) {
+			connection = connect(chatServer);
+		}
+		return connection;
+	}
+
+	/**
+	 * Starts warming a connection to a chat server in the background, if
+	 * there is none already.
+	 * @param chatServer the chat server.
+	 */
+	public void prewarm(final ChatServer chatServer) {
+		final String key = chatServer.getEndpoint();
+		final Entry entry = new Entry();
+		synchronized (this) {
+			Entry existing = entries.get(key);
+			if (existing != null && (existing.connecting || !existing.
+					connection.isClosed())) {
+				return;
+			}
+			entries.remove(key);
+			entries.put(key, entry);
+		}
+
+		if (executor.submit("Warm " + key, connectLimit, new Runnable() {
+			@Override
+			public void run() {
+				ChatServerConnection connection = null;
+				try {
+					connection = connect(chatServer);
+				} catch (Exception e) {
+
+					/*Nothing to warm, it will be connected when taken.*/
+				}
+				warmed(key, entry, connection);
+			}
+		}) == null) {
+			warmed(key, entry, null);
+		}
+	}
+
+	/**
+	 * Returns the number of connections taken warm.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of connections that had to be connected when
+	 * taken.
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Closes every warm connection.
+	 */
+	public void close() {
+		ArrayList<ChatServerConnection> closing =
+				new ArrayList<ChatServerConnection>();
+		synchronized (this) {
+			for (Entry entry : entries.values()) {
+				if (entry.connection != null) {
+					closing.add(entry.connection);
+				}
+			}
+			entries.clear();
+			notifyAll();
+		}
+		for (ChatServerConnection connection : closing) {
+			connection.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ConnectionPool[warm=" + entries.keySet() + ", hits=" + hits +
+				", misses=" + misses + "]";
+	}
+
+	/**
+	 * Stores the result of warming a connection, and makes room for it.
+	 * @param key the address and port of the server.
+	 * @param entry the entry of the connection.
+	 * @param connection the connection, or null if it couldn't be made.
+	 */
+	private void warmed(String key, Entry entry, ChatServerConnection
+			connection) {
+		ArrayList<ChatServerConnection> closing =
+				new ArrayList<ChatServerConnection>();
+		boolean schedule = false;
+		synchronized (this) {
+			entry.connecting = false;
+			entry.connection = connection;
+			entry.expires = System.currentTimeMillis() + idleTime;
+			if (connection == null || entries.get(key) != entry) {
+
+				/*Failed, or closed by the pool while connecting.*/
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+				}
+				if (connection != null) {
+					closing.add(connection);
+				}
+			} else {
+				evict(closing);
+				schedule = !sweepScheduled;
+				sweepScheduled = true;
+			}
+			notifyAll();
+		}
+
+		for (ChatServerConnection closed : closing) {
+			closed.close();
+		}
+		if (schedule) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * Removes the least recently warmed connections beyond MAX_WARM, and
+	 * the ones that have been idle too long or were closed by their
+	 * servers. Must be called while holding the lock.
+	 * @param closing a list to add the connections to be closed to.
+	 */
+	private void evict(ArrayList<ChatServerConnection> closing) {
+		long now = System.currentTimeMillis();
+		int warm = entries.size();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.connecting) {
+				continue;
+			}
+			if (warm > MAX_WARM || entry.expires <= now || entry.connection.
+					isClosed()) {
+				iterator.remove();
+				closing.add(entry.connection);
+				warm--;
+			}
+		}
+	}
+
+	/**
+	 * Has the transport close the idle connections once the idle time has
+	 * passed, and again for as long as there are warm connections.
+	 */
+	private void scheduleSweep() {
+		try {
+			SelectorTransport.getDefault().schedule(new Runnable() {
+				@Override
+				public void run() {
+					sweep();
+				}
+			}, TimeUnit.MILLISECONDS.toNanos(idleTime));
+		} catch (IOException e) {
+			synchronized (this) {
+				sweepScheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle connections. Runs on the I/O thread of the transport.
+	 */
+	private void sweep() {
+		ArrayList<ChatServerConnection> closing =
+				new ArrayList<ChatServerConnection>();
+		boolean schedule;
+		synchronized (this) {
+			evict(closing);
+			schedule = !entries.isEmpty();
+			sweepScheduled = schedule;
+		}
+		for (ChatServerConnection connection : closing) {
+			connection.close();
+		}
+		if (schedule) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * Connects to a chat server through the shared transport.
+	 * @param chatServer the chat server.
+	 * @return the new connection.
+	 * @throws Exception if the connection couldn't be established.
+	 */
+	private static ChatServerConnection connect(ChatServer chatServer)
+			throws Exception {
+		return new ChatServerConnection(chatServer,
+				SelectorTransport.getDefault());
+	}
+}
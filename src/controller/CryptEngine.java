@@ -0,0 +1,133 @@
+package controller;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encrypts and decrypts messages the same way as Crypt, eight bytes at a
+ * time.
+ *
+ * The key is repeated once, when the engine is created, into a keystream
+ * block whose length is a multiple of the key length. Data is then XOR:ed
+ * with the block as longs, block after block, with no modulo per byte.
+ * Engines are cached by key, so the key is only expanded when it changes.
+ * @author c12mkn
+ *
+ */
+public class CryptEngine {
+	private static final int MIN_KEYSTREAM_LENGTH = 512;
+	private static final int MAX_CACHED_KEYS = 16;
+
+	private static final VarHandle LONGS = MethodHandles.
+			byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final ConcurrentHashMap<String, CryptEngine> engines =
+			new ConcurrentHashMap<String, CryptEngine>();
+
+	private byte[] keystream;
+
+	/**
+	 * Constructs a CryptEngine for a key.
+	 * @param key the key in bytes.
+	 * @param keyLength the number of bytes of the key to use, like the
+	 * keylen argument of Crypt.
+	 */
+	public CryptEngine(byte[] key, int keyLength) {
+		keyLength = Math.min(keyLength, key.length);
+		if (keyLength == 0) {
+			keystream = new byte[0];
+			return;
+		}
+
+		int repeats = (MIN_KEYSTREAM_LENGTH + keyLength - 1) / keyLength;
+		keystream = new byte[repeats * keyLength];
+		for (int i = 0; i < repeats; i++) {
+			System.arraycopy(key, 0, keystream, i * keyLength, keyLength);
+		}
+	}
+
+	/**
+	 * Returns the engine of a key, expanding the key the first time it's
+	 * used. The key is used like PDUFactory and Executor have always done,
+	 * the platform encoding of the key cut to its number of characters.
+	 * @param key an encryption key.
+	 * @return the engine of the key.
+	 */
+	public static CryptEngine forKey(String key) {
+		CryptEngine engine = engines.get(key);
+		if (engine == null) {
+			if (engines.size() >= MAX_CACHED_KEYS) {
+				engines.clear();
+			}
+			engine = new CryptEngine(key.getBytes(), key.length());
+			engines.put(key, engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Encrypts or decrypts a part of an array in place. An empty key leaves
+	 * the data as it is.
+	 * @param data the array holding the data.
+	 * @param offset the index in the array where the data starts. The key
+	 * starts over here.
+	 * @param length the length of the data in bytes.
+	 */
+	public void apply(byte[] data, int offset, int length) {
+		int blockLength = keystream.length;
+		if (blockLength == 0) {
+			return;
+		}
+
+		for (int start = 0; start < length; start += blockLength) {
+			int count = Math.min(blockLength, length - start);
+			int base = offset + start;
+			int i = 0;
+			for (; i + 8 <= count; i += 8) {
+				LONGS.set(data, base + i, (long) LONGS.get(data, base + i) ^
+						(long) LONGS.get(keystream, i));
+			}
+			for (; i < count; i++) {
+				data[base + i] ^= keystream[i];
+			}
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts a part of a buffer in place. The position and
+	 * limit of the buffer are not changed.
+	 * @param data a writable heap or direct buffer holding the data.
+	 * @param offset the index in the buffer where the data starts. The key
+	 * starts over here.
+	 * @param length the length of the data in bytes.
+	 */
+	public void apply(ByteBuffer data, int offset, int length) {
+		if (data.hasArray()) {
+			apply(data.array(), data.arrayOffset() + offset, length);
+			return;
+		}
+
+		int blockLength = keystream.length;
+		if (blockLength == 0) {
+			return;
+		}
+
+		/*Read the buffer in the byte order the keystream is read in.*/
+		ByteBuffer view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0; start < length; start += blockLength) {
+			int count = Math.min(blockLength, length - start);
+			int base = offset + start;
+			int i = 0;
+			for (; i + 8 <= count; i += 8) {
+				view.putLong(base + i, view.getLong(base + i) ^
+						(long) LONGS.get(keystream, i));
+			}
+			for (; i < count; i++) {
+				view.put(base + i, (byte) (view.get(base + i) ^
+						keystream[i]));
+			}
+		}
+	}
+}
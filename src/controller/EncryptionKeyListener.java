@@ -15,22 +15,22 @@ import view.GUI;
  */
 public class EncryptionKeyListener implements ActionListener {
 	private SendButtonListener sendButtonListener;
-	private Executor executor;
+	private SessionManager sessionManager;
 	private GUI gui;
 
 	/**
 	 * Constructs an EncryptionKeyItemListener.
-	 * @param executor an Executor object which encryption key attribute will
-	 * be altered.
+	 * @param sessionManager the sessions whose Executors' encryption keys
+	 * will be altered.
 	 * @param sendButtonListener a SendButtonListener object which encryption
 	 * key will be altered.
 	 * @param gui a GUI to display error messages at if the encryption key
 	 * doesn't have a proper format.
 	 */
-	public EncryptionKeyListener(Executor executor, SendButtonListener
-			sendButtonListener, GUI gui) {
+	public EncryptionKeyListener(SessionManager sessionManager,
+			SendButtonListener sendButtonListener, GUI gui) {
 		this.sendButtonListener = sendButtonListener;
-		this.executor = executor;
+		this.sessionManager = sessionManager;
 		this.gui = gui;
 	}
 
@@ -55,7 +55,7 @@ public class EncryptionKeyListener implements ActionListener {
 			/*If the key checks out, change it where needed.*/
 		} else {
 			sendButtonListener.setCryptKey(key);
-			executor.setEncryptionKey(key);
+			sessionManager.setEncryptionKey(key);
 		}
 	}
 }
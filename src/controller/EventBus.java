@@ -0,0 +1,379 @@
+package controller;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A typed publish/subscribe channel for events of one kind.
+ *
+ * Every subscriber has a bounded ring buffer of its own and an executor
+ * delivering from it, so a slow subscriber never holds up the publisher or
+ * the other subscribers. Publishing claims a slot in each ring with a
+ * compare-and-set and takes no locks. What happens when a ring is full is
+ * decided per subscriber: the publisher waits (BLOCK), the new event is
+ * dropped (DROP_NEWEST), or the oldest queued event is dropped to make room
+ * (DROP_OLDEST). Events of each subscriber are delivered in order, one at a
+ * time.
+ *
+ * Events that hold resources, such as pooled PDUs, can be given a Sharing
+ * that retains an event once for every subscriber it's queued for and
+ * releases it once delivered or dropped.
+ * @author c12mkn
+ *
+ * @param <E> the type of the events.
+ */
+public class EventBus<E> {
+	/*What to do when the ring of a subscriber is full.*/
+	public static final int BLOCK = 0;
+	public static final int DROP_NEWEST = 1;
+	public static final int DROP_OLDEST = 2;
+
+	private static final int MAX_BATCH = 64;
+	private static final long BLOCK_PARK_NANOS = 50000;
+
+	private String name;
+	private Sharing<? super E> sharing;
+	private CopyOnWriteArrayList<Subscription> subscriptions;
+	private AtomicLong published;
+
+	/**
+	 * An object receiving the events of an EventBus.
+	 * @param <E> the type of the events.
+	 */
+	public interface Subscriber<E> {
+
+		/**
+		 * Called by the delivery executor of the subscription for every
+		 * event, in the order they were published.
+		 * @param event an event.
+		 */
+		void onEvent(E event);
+	}
+
+	/**
+	 * Reference counting of events shared between subscribers.
+	 * @param <E> the type of the events.
+	 */
+	public interface Sharing<E> {
+
+		/**
+		 * Adds a reference to an event.
+		 * @param event an event.
+		 */
+		void retain(E event);
+
+		/**
+		 * Drops a reference to an event.
+		 * @param event an event.
+		 */
+		void release(E event);
+	}
+
+	/**
+	 * Constructs an EventBus whose events need no reference counting.
+	 * @param name a name for the bus, given to its delivery tasks.
+	 */
+	public EventBus(String name) {
+		this(name, null);
+	}
+
+	/**
+	 * Constructs an EventBus.
+	 * @param name a name for the bus, given to its delivery tasks.
+	 * @param sharing the reference counting of the events, or null if they
+	 * need none.
+	 */
+	public EventBus(String name, Sharing<? super E> sharing) {
+		this.name = name;
+		this.sharing = sharing;
+		subscriptions = new CopyOnWriteArrayList<Subscription>();
+		published = new AtomicLong();
+	}
+
+	/**
+	 * Subscribes to the events of the bus.
+	 * @param subscriber the subscriber.
+	 * @param deliveryExecutor the executor running the deliveries.
+	 * @param capacity the number of events that may be queued for the
+	 * subscriber, rounded up to a power of two.
+	 * @param policy BLOCK, DROP_NEWEST or DROP_OLDEST.
+	 * @return the subscription, which may be closed to unsubscribe.
+	 */
+	public Subscription subscribe(Subscriber<? super E> subscriber,
+			java.util.concurrent.Executor deliveryExecutor, int capacity,
+			int policy) {
+		Subscription subscription = new Subscription(subscriber,
+				deliveryExecutor, capacity, policy);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Publishes an event to every subscriber. The caller keeps its own
+	 * reference to the event, if it's shared.
+	 * @param event the event.
+	 * @return the number of subscribers the event was queued for.
+	 */
+	public int publish(E event) {
+		published.incrementAndGet();
+		int queued = 0;
+		for (Subscription subscription : subscriptions) {
+			if (subscription.offer(event)) {
+				queued++;
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Returns the number of events published.
+	 * @return the number of published events.
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * Returns the number of subscribers.
+	 * @return the number of subscribers.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public String toString() {
+		return "EventBus[" + name + ", published=" + getPublished() +
+				", subscriptions=" + subscriptions + "]";
+	}
+
+	/**
+	 * A subscriber of the bus, with its ring buffer and delivery statistics.
+	 *
+	 * The ring is a bounded multi-producer queue where every slot has a
+	 * sequence number telling whether it's free to write or ready to read
+	 * in the current lap around the ring.
+	 * @author c12mkn
+	 *
+	 */
+	public class Subscription {
+		private Subscriber<? super E> subscriber;
+		private java.util.concurrent.Executor deliveryExecutor;
+		private int policy;
+		private int mask;
+		private AtomicReferenceArray<E> events;
+		private AtomicLongArray sequences;
+		private AtomicLong head;
+		private AtomicLong tail;
+		private AtomicBoolean scheduled;
+		private volatile boolean closed;
+		private AtomicLong delivered;
+		private AtomicLong dropped;
+		private Runnable drainTask;
+
+		private Subscription(Subscriber<? super E> subscriber,
+				java.util.concurrent.Executor deliveryExecutor, int capacity,
+				int policy) {
+			this.subscriber = subscriber;
+			this.deliveryExecutor = deliveryExecutor;
+			this.policy = policy;
+
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mask = size - 1;
+			events = new AtomicReferenceArray<E>(size);
+			sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				sequences.set(i, i);
+			}
+			head = new AtomicLong();
+			tail = new AtomicLong();
+			scheduled = new AtomicBoolean();
+			delivered = new AtomicLong();
+			dropped = new AtomicLong();
+			drainTask = new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			};
+		}
+
+		/**
+		 * Stops delivering to the subscriber and drops the queued events.
+		 */
+		public void close() {
+			closed = true;
+			subscriptions.remove(this);
+			E event;
+			while ((event = poll()) != null) {
+				discard(event);
+			}
+		}
+
+		/**
+		 * Returns the number of events delivered to the subscriber.
+		 * @return the number of delivered events.
+		 */
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		/**
+		 * Returns the number of events dropped since the ring was full.
+		 * @return the number of dropped events.
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * Returns the number of events queued for the subscriber.
+		 * @return the queue depth.
+		 */
+		public int getQueueDepth() {
+			return (int) Math.max(0, tail.get() - head.get());
+		}
+
+		@Override
+		public String toString() {
+			return "Subscription[delivered=" + getDelivered() + ", dropped=" +
+					getDropped() + ", queued=" + getQueueDepth() + "]";
+		}
+
+		/**
+		 * Queues an event for the subscriber, following the policy if the
+		 * ring is full, and makes sure a delivery is scheduled.
+		 * @param event the event.
+		 * @return true if the event was queued.
+		 */
+		private boolean offer(E event) {
+			if (closed) {
+				return false;
+			}
+			if (sharing != null) {
+				sharing.retain(event);
+			}
+
+			while (!tryOffer(event)) {
+				if (policy == DROP_NEWEST || closed) {
+					dropped.incrementAndGet();
+					discard(event);
+					return false;
+				} else if (policy == DROP_OLDEST) {
+					E oldest = poll();
+					if (oldest != null) {
+						dropped.incrementAndGet();
+						discard(oldest);
+					}
+				} else {
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				}
+			}
+
+			schedule();
+			return true;
+		}
+
+		/**
+		 * Writes an event into the next free slot of the ring.
+		 * @param event the event.
+		 * @return false if the ring is full.
+		 */
+		private boolean tryOffer(E event) {
+			long position = tail.get();
+			while (true) {
+				int index = (int) position & mask;
+				long difference = sequences.get(index) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						events.set(index, event);
+						sequences.set(index, position + 1);
+						return true;
+					}
+					position = tail.get();
+				} else if (difference < 0) {
+					return false;
+				} else {
+					position = tail.get();
+				}
+			}
+		}
+
+		/**
+		 * Takes the oldest event out of the ring.
+		 * @return the event, or null if the ring is empty.
+		 */
+		private E poll() {
+			long position = head.get();
+			while (true) {
+				int index = (int) position & mask;
+				long difference = sequences.get(index) - (position + 1);
+				if (difference == 0) {
+					if (head.compareAndSet(position, position + 1)) {
+						E event = events.get(index);
+						events.set(index, null);
+						sequences.set(index, position + mask + 1);
+						return event;
+					}
+					position = head.get();
+				} else if (difference < 0) {
+					return null;
+				} else {
+					position = head.get();
+				}
+			}
+		}
+
+		/**
+		 * Schedules a delivery run unless one is already scheduled.
+		 */
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				deliveryExecutor.execute(drainTask);
+			}
+		}
+
+		/**
+		 * Delivers a batch of queued events, then schedules another run if
+		 * more are queued, so one busy subscription can't hog a shared
+		 * delivery executor.
+		 */
+		private void drain() {
+			try {
+				for (int i = 0; i < MAX_BATCH && !closed; i++) {
+					E event = poll();
+					if (event == null) {
+						break;
+					}
+					try {
+						subscriber.onEvent(event);
+						delivered.incrementAndGet();
+					} catch (RuntimeException e) {
+						TaskExecutor.reportFailure(e);
+					} finally {
+						discard(event);
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!closed && tail.get() != head.get()) {
+					schedule();
+				}
+			}
+		}
+
+		/**
+		 * Drops the reference of the subscription to an event.
+		 * @param event the event.
+		 */
+		private void discard(E event) {
+			if (sharing != null) {
+				sharing.release(event);
+			}
+		}
+	}
+}
@@ -1,75 +1,77 @@
 package controller;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Observable;
-import java.util.Observer;
-
-import javax.swing.DefaultListModel;
-import javax.swing.SwingUtilities;
+import java.util.ArrayList;
 
+import model.CompressAlgorithms;
 import model.MsgTypes;
-import model.OpCodes;
 import model.PDU;
-import view.GUI;
+import view.SessionPanel;
 
 
 /**
- * A class used to take different courses of action when receiving a PDU
+ * A class used to take different courses of action when receiving a PDU.
+ * Every session has an Executor of its own.
  */
-public class Executor implements Observer {
+public class Executor implements EventBus.Subscriber<PDUEvent> {
 	/*A default encryption key to be used if no other is provided.*/
 	private static final String DEFAULTENCRYPTIONKEY = "foobar";
 
-	private GUI gui;
-	private DefaultListModel<String> userListModel;
-	private String encryptionKey;
+	private static final int LINE_CAPACITY = 256;
+
+	private SwingDispatcher dispatcher;
+	private TimeStampFormatter timeStamps;
+	private StringBuilder line;
+	private volatile CryptEngine cryptEngine;
+	private CodecRegistry codecs;
+	private EventBus<ChatServerConnection> abortBus;
+	private ChatServerConnection source;
 
 	/**
 	 * Constructs a new Executor.
-	 * @param gui a GUI object.
+	 * @param panel the tab of the chat server the PDUs come from.
+	 */
+	public Executor(SessionPanel panel) {
+		dispatcher = new SwingDispatcher(panel);
+		timeStamps = new TimeStampFormatter();
+		line = new StringBuilder(LINE_CAPACITY);
+		cryptEngine = CryptEngine.forKey(DEFAULTENCRYPTIONKEY);
+		codecs = CodecRegistry.getDefault();
+	}
+
+	/**
+	 * Sets the bus on which a connection is published to be aborted when
+	 * its server quits.
+	 * @param abortBus the abort bus of a ConnectionHandler.
 	 */
-	public Executor(GUI gui, DefaultListModel<String> userListModel) {
-		this.gui = gui;
-		this.userListModel = userListModel;
-		encryptionKey = DEFAULTENCRYPTIONKEY;
+	public void setAbortBus(EventBus<ChatServerConnection> abortBus) {
+		this.abortBus = abortBus;
 	}
 
 	/*The following code runs when an underlying ConnectionHandler object
-	 * receives a PDU.*/
+	 * receives a PDU. Events are delivered one at a time.*/
 	@Override
-	public void update(Observable observable, Object object) {
-		PDU pdu = (PDU) object;
-
-		/*Depending on the PDU, take appropriate action.*/
-		switch (pdu.getByte(0)) {
-			case OpCodes.UJOIN:
-				processUserJoin(pdu);
-				break;
-			case OpCodes.NICKS:
-				clearUserList();
-				clearWhenPossible();
-				processNicknames(pdu);
-				break;
-			case OpCodes.ULEAVE:
-				processUserLeave(pdu);
-				break;
-			case OpCodes.UCNICK:
-				processChangeNickname(pdu);
-				break;
-			case OpCodes.QUIT:
-				((ConnectionHandler) observable).abortConnection();
-				break;
-			case OpCodes.MESSAGE:
+	public void onEvent(PDUEvent event) {
+		PDU pdu = event.getPDU();
+		source = event.getConnection();
+
+		/*Let the codec of the op code take the appropriate action. Messages
+		 * whose checksum doesn't check out never get here, the PDUParser
+		 * drops them.*/
+		PDUCodec codec = codecs.get(pdu.getByte(0));
+		if (codec != null) {
+			codec.handle(this, pdu);
+		}
+	}
 
-				/*If the checksum of the message doesn't check out, disregard
-				 * it.*/
-				if (Checksum.calc(pdu.getBytes(), pdu.length()) == 0) {
-					displayMessage(pdu);
-				}
-				break;
+	/**
+	 * Aborts the current connection after a QUIT PDU.
+	 * @param pdu a QUIT PDU.
+	 */
+	void processQuit(PDU pdu) {
+		if (abortBus != null) {
+			abortBus.publish(source);
 		}
 	}
 
@@ -78,36 +80,33 @@ public class Executor implements Observer {
 	 * the GUI.
 	 * @param pdu a UCNIK PDU.
 	 */
-	private void processChangeNickname(PDU pdu) {
+	void processChangeNickname(PDU pdu) {
 		int nickLength1 = pdu.getByte(1);
 		int nickLength2 = pdu.getByte(2);
 
-		String nickname1 = new String(pdu.getSubrange(8, nickLength1),
-				StandardCharsets.UTF_8);
-		String nickname2 = new String(pdu.getSubrange(8+Client.
-				getPaddedLength(nickLength1), nickLength2), StandardCharsets.
-				UTF_8);
+		String nickname1 = pdu.getString(8, nickLength1);
+		String nickname2 = pdu.getString(8+Client.getPaddedLength(
+				nickLength1), nickLength2);
 
-		removeFromUserList(nickname1);
-		addToUserList(nickname2);
+		dispatcher.removeUser(nickname1);
+		dispatcher.addUser(nickname2);
 
-		String timeStamp = getTimeStamp(pdu.getInt(4));
-		appendWhenPossible(timeStamp + "User " + nickname1 + " changed " +
-				"nickname to " + nickname2 + ".");
+		appendWhenPossible(startLine(pdu.getInt(4)).append("User ").
+				append(nickname1).append(" changed nickname to ").
+				append(nickname2).append('.'));
 	}
 
 	/**
 	 * Extracts information from a ULEAVE PDU and displays it in the GUI.
 	 * @param pdu
 	 */
-	private void processUserLeave(PDU pdu) {
+	void processUserLeave(PDU pdu) {
 		int nickLength = pdu.getByte(1);
-		String timeStamp = getTimeStamp(pdu.getInt(4));
-		String nickname = new String(pdu.getSubrange(8, nickLength),
-				StandardCharsets.UTF_8);
+		String nickname = pdu.getString(8, nickLength);
 
-		removeFromUserList(nickname);
-		appendWhenPossible(timeStamp+nickname+" has left the server.");
+		dispatcher.removeUser(nickname);
+		appendWhenPossible(startLine(pdu.getInt(4)).append(nickname).
+				append(" has left the server."));
 	}
 
 	/**
@@ -115,7 +114,7 @@ public class Executor implements Observer {
 	 * in the GUI.
 	 * @param pdu a MESS PDU.
 	 */
-	private void displayMessage(PDU pdu) {
+	void displayMessage(PDU pdu) {
 		int messageLength = pdu.getShort(4);
 		byte[] temp;
 		String message = "";
@@ -124,34 +123,32 @@ public class Executor implements Observer {
 			case MsgTypes.TEXT:
 
 				/*If the message is in plain text, simply extract it.*/
-				message = new String(pdu.getSubrange(12, messageLength),
-						StandardCharsets.UTF_8);
+				message = pdu.getString(12, messageLength);
 				break;
 			case MsgTypes.COMP:
 
 				/*If the message is compressed, decompress it.*/
 				try {
-					temp = decompressMessage(pdu.getSubrange(12,
-							messageLength));
+					temp = decompressMessage(pdu.slice(12, messageLength));
 					if (temp == null) {
 						return;
 					}
 					message = new String(temp, StandardCharsets.UTF_8);
 					break;
-				} catch (ArrayIndexOutOfBoundsException e) {
+				} catch (IndexOutOfBoundsException e) {
 					return;
 				}
 			case MsgTypes.CRYPT:
 
 				/*If the message is encrypted, decrypt it.*/
 				try {
-					temp = decryptMessage(pdu.getSubrange(12, messageLength));
+					temp = decryptMessage(pdu.slice(12, messageLength));
 					if (temp == null) {
 						return;
 					}
 					message = new String(temp, StandardCharsets.UTF_8);
 					break;
-				} catch (ArrayIndexOutOfBoundsException e) {
+				} catch (IndexOutOfBoundsException e) {
 					return;
 				}
 
@@ -159,18 +156,17 @@ public class Executor implements Observer {
 				 * then decompress it.*/
 			case MsgTypes.COMPCRYPT:
 				try {
-					temp = decryptMessage(pdu.getSubrange(12, messageLength));
+					temp = decryptMessage(pdu.slice(12, messageLength));
 					if (temp == null) {
 						return;
 					}
-					PDU tempPDU = new PDU(temp, temp.length);
-					temp = decompressMessage(tempPDU.getBytes());
+					temp = decompressMessage(new PDU(ByteBuffer.wrap(temp)));
 					if (temp == null) {
 						return;
 					}
 					message = new String(temp, StandardCharsets.UTF_8);
 					break;
-				}  catch (ArrayIndexOutOfBoundsException e) {
+				}  catch (IndexOutOfBoundsException e) {
 					return;
 				}
 
@@ -183,24 +179,26 @@ public class Executor implements Observer {
 		/*Extract the nickname if there is one.*/
 		String nickname = "";
 		if (nicknameLength != 0) {
-			nickname = new String(pdu.getSubrange(
-					12+messagePaddedLength, nicknameLength), StandardCharsets.
-					UTF_8);
+			nickname = pdu.getString(12+messagePaddedLength,
+					nicknameLength);
 		} else {
 
 			/*If not, assume it's a server message.*/
 			nickname = "Server message";
 		}
 
-		String timeStamp = getTimeStamp(pdu.getInt(8));
-		appendWhenPossible(timeStamp+nickname+": "+message);
+		appendWhenPossible(startLine(pdu.getInt(8)).append(nickname).
+				append(": ").append(message));
 	}
 
 	/**
-	 * Extracts information from a NICKS PDU and displays it in the GUI.
+	 * Extracts information from a NICKS PDU and makes the user list match
+	 * it. The chat is left as it is.
 	 * @param pdu a NICKS PDU.
 	 */
-	private void processNicknames(PDU pdu) {
+	void processNicknames(PDU pdu) {
+		ArrayList<String> nicknames = new ArrayList<String>();
+
 		int totalLength = pdu.getShort(2);
 		int nickLength = 0;
 		int nickStart = 4;
@@ -210,70 +208,83 @@ public class Executor implements Observer {
 				nickLength++;
 			} else {
 				if (nickLength > 0) {
-					String nickname = new String(pdu.getSubrange(nickStart,
-							nickLength), StandardCharsets.UTF_8);
-					addToUserList(nickname);
+					nicknames.add(pdu.getString(nickStart, nickLength));
 				}
 				nickLength = 0;
 				nickStart = i+1;
 			}
 		}
+		dispatcher.setUsers(nicknames);
 	}
 
 	/**
 	 * Extracts informaton from a UJOIN PDU and displays it in the GUI.
 	 * @param pdu a UJOIN PDU.
 	 */
-	private void processUserJoin(PDU pdu) {
+	void processUserJoin(PDU pdu) {
 		int nickLength = pdu.getByte(1);
-		String timeStamp = getTimeStamp(pdu.getInt(4));
-		String nickname = new String(pdu.getSubrange(8, nickLength),
-				StandardCharsets.UTF_8);
+		String nickname = pdu.getString(8, nickLength);
+
+		dispatcher.addUser(nickname);
+		appendWhenPossible(startLine(pdu.getInt(4)).append(nickname).
+				append(" has joined the server."));
+	}
 
-		addToUserList(nickname);
-		appendWhenPossible(timeStamp+nickname+" has joined the server.");
+	/**
+	 * Starts a new line in the reused line builder with the time stamp of
+	 * a PDU. Events are delivered one at a time, so one builder is enough.
+	 * @param time the time of the PDU in seconds.
+	 * @return the line builder.
+	 */
+	private StringBuilder startLine(long time) {
+		line.setLength(0);
+		return timeStamps.append(line, time);
 	}
 
 	/**
-	 * Extracts the time stamp from a MESS PDU and returns it as a formatted
-	 * string.
-	 * @param time a long representing the time.
-	 * @return the time stamp as a string.
+	 * Appends a notice about the connection to the messages. May be called
+	 * from any thread.
+	 * @param text the notice.
 	 */
-	private String getTimeStamp(long time) {
-		Date date = new Date(time*1000);
-		DateFormat formatter = new SimpleDateFormat("HH:mm:ss");
-		String dateFormatted = "[" + formatter.format(date) + "] ";
-		return dateFormatted;
+	public void appendNotice(String text) {
+		dispatcher.append(text);
 	}
 
 	/**
 	 * Appends the text area in the GUI when possible.
-	 * @param text the text to be appended.
+	 * @param text the line to be appended.
 	 */
-	private void appendWhenPossible(String text) {
-		SwingUtilities.invokeLater(new AppendMessageHelperRunnable(text));
+	private void appendWhenPossible(StringBuilder text) {
+		dispatcher.append(text.toString());
 	}
 
 	/**
 	 * Decompresses a message.
-	 * @param message the bytes of the message to be decompressed.
+	 * @param pdu a view of the compressed message PDU.
 	 * @return the decompressed message as a byte array. Returns null if
 	 * the message could not be decompressed.
-	 * @throws ArrayIndexOutOfBoundsException if the message to be decompressed
+	 * @throws IndexOutOfBoundsException if the message to be decompressed
 	 * had a bad format.
 	 */
-	private byte[] decompressMessage(byte[] message)
-			throws ArrayIndexOutOfBoundsException {
-		PDU pdu = new PDU(message, message.length);
+	private byte[] decompressMessage(PDU pdu)
+			throws IndexOutOfBoundsException {
 
 		/*Check the checksum, if it doesn't check out, return null.*/
-		if (Checksum.calc(pdu.getBytes(), pdu.length()) != 0) {
+		if (Checksum.calc(pdu.asByteBuffer(), 0, pdu.length()) != 0) {
 			return null;
 		}
-		byte[] temp = pdu.getSubrange(8, pdu.getShort(2));
+		PDU compressed = pdu.slice(8, pdu.getShort(2));
+		byte[] temp;
 		try {
-			temp = GZIP.decompress(temp, pdu.getShort(4));
+			if (pdu.getByte(0) == CompressAlgorithms.GZIP) {
+				temp = GZIP.decompress(compressed.asByteBuffer(),
+						pdu.getShort(4));
+			} else if (pdu.getByte(0) == CompressAlgorithms.LZ4) {
+				temp = LZ4.decompress(compressed.asByteBuffer(),
+						pdu.getShort(4));
+			} else {
+				return null;
+			}
 		} catch (Exception e) {
 			return null;
 		}
@@ -283,22 +294,22 @@ public class Executor implements Observer {
 
 	/**
 	 * Decrypts a message.
-	 * @param message the message to be decrypted.
+	 * @param pdu a view of the encrypted message PDU.
 	 * @return the decrypted message as a byte array.
-	 * @throws ArrayIndexOutOfBoundsException if the message to be decompressed
+	 * @throws IndexOutOfBoundsException if the message to be decompressed
 	 * had a bad format.
 	 */
-	private byte[] decryptMessage(byte[] message)
-			throws ArrayIndexOutOfBoundsException {
-		PDU pdu = new PDU(message, message.length);
+	private byte[] decryptMessage(PDU pdu)
+			throws IndexOutOfBoundsException {
 
 		/*Check the checksum, if it doesn't check out, return null.*/
-		if (Checksum.calc(pdu.getBytes(), pdu.length()) != 0) {
+		if (Checksum.calc(pdu.asByteBuffer(), 0, pdu.length()) != 0) {
 			return null;
 		}
+
+		/*The decrypted bytes are the only copy made on the way.*/
 		byte[] buffer = pdu.getSubrange(8, pdu.getShort(2));
-		Crypt.decrypt(buffer, buffer.length, encryptionKey.getBytes(),
-				encryptionKey.length());
+		cryptEngine.apply(buffer, 0, buffer.length);
 		return buffer;
 	}
 
@@ -307,88 +318,6 @@ public class Executor implements Observer {
 	 * @param decryptionKey a decryption key to be used.
 	 */
 	public void setEncryptionKey(String decryptionKey) {
-		this.encryptionKey = decryptionKey;
-	}
-
-	/**
-	 * Helper class used internally to append a message to the text field
-	 * in the GUI.
-	 * @author c12mkn
-	 *
-	 */
-	private class AppendMessageHelperRunnable implements Runnable {
-		private String text;
-
-		public AppendMessageHelperRunnable(String text) {
-			this.text = text;
-		}
-
-		@Override
-		public void run() {
-			gui.appendTextArea(text);
-		}
-	}
-
-	/**
-	 * Clears the text area in the GUI when possible.
-	 */
-	private void clearWhenPossible() {
-		SwingUtilities.invokeLater(new ClearHelperRunnable(gui));
-	}
-
-	/**
-	 * Helper class used internally to clear the text area in the GUI.
-	 * @author c12mkn
-	 *
-	 */
-	private class ClearHelperRunnable implements Runnable {
-		private GUI gui;
-
-		public ClearHelperRunnable(GUI gui) {
-			this.gui = gui;
-		}
-
-		@Override
-		public void run() {
-			gui.clearTextArea();
-		}
-	}
-
-	/**
-	 * Helper function to add a user to the user list.
-	 * @param nickname the nickname of the user.
-	 */
-	private void addToUserList(final String nickname) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				userListModel.addElement(nickname);
-			}
-		});
-	}
-
-	/**
-	 * Helper function to add a user to the user list.
-	 * @param nickname
-	 */
-	private void removeFromUserList(final String nickname) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				userListModel.removeElement(nickname);
-			}
-		});
-	}
-
-	/**
-	 * Helper function to clear the user list.
-	 */
-	private void clearUserList() {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				userListModel.clear();
-			}
-		});
+		cryptEngine = CryptEngine.forKey(decryptionKey);
 	}
 }
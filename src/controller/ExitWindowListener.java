@@ -10,23 +10,22 @@ import java.awt.event.ActionListener;
  *
  */
 public class ExitWindowListener implements ActionListener {
-	private ConnectionHandler connectionHandler;
+	private SessionManager sessionManager;
 	
 	/**
 	 * Constructs a WindowExitAdapter.
-	 * @param connectionHandler a ConnectionHandler object.
+	 * @param sessionManager the sessions of the chat client.
 	 */
-	public ExitWindowListener(ConnectionHandler connectionHandler) {
-		this.connectionHandler = connectionHandler;
+	public ExitWindowListener(SessionManager sessionManager) {
+		this.sessionManager = sessionManager;
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		
-		/*If the window is closing, send a quit message to the server.*/
-		if (connectionHandler.hasConnection()) {
-			connectionHandler.sendPDU(PDUFactory.makeQuit());
-		}
+		/*If the window is closing, send a quit message to the servers and
+		 * stop all background work.*/
+		Client.shutdown(sessionManager);
 		System.exit(0);
 	}
 }
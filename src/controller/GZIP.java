@@ -1,16 +1,43 @@
 package controller;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 /**
  * A class used to decompress and compress messages using GZIP.
+ *
+ * The GZIP header and trailer are written and read here, around raw
+ * deflate data, so no streams are needed. Deflaters and Inflaters hold
+ * native zlib state and are expensive to create, so they are pooled and
+ * reused between messages.
  * @author c12mkn
  *
  */
 public class GZIP {
+	public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	private static final int HEADER_LENGTH = 10;
+	private static final int TRAILER_LENGTH = 8;
+	private static final int MAX_POOLED = 8;
+
+	/*Flags of the GZIP header.*/
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private static final ConcurrentLinkedQueue<Deflater> deflaters =
+			new ConcurrentLinkedQueue<Deflater>();
+	private static final ConcurrentLinkedQueue<Inflater> inflaters =
+			new ConcurrentLinkedQueue<Inflater>();
+	private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+	private static final AtomicInteger pooledInflaters = new AtomicInteger();
 
 	/**
 	 * Compresses a given message using GZIP compression.
@@ -19,33 +46,252 @@ public class GZIP {
 	 * @throws Exception if the message couldn't be compressed.
 	 */
 	public static byte[] compress(byte[] message) throws Exception {
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			GZIPOutputStream zipStream = new GZIPOutputStream(byteStream);
-			zipStream.write(message);
-			zipStream.close();
-			byteStream.close();
+		byte[] output = new byte[getMaxCompressedLength(message.length)];
+		int length = compress(message, 0, message.length, DEFAULT_LEVEL,
+				output, 0);
 
-			return byteStream.toByteArray();
+		byte[] compressed = new byte[length];
+		System.arraycopy(output, 0, compressed, 0, length);
+		return compressed;
 	}
 
 	/**
-	 *
+	 * Compresses a part of an array straight into another array.
+	 * @param message an array holding the message.
+	 * @param offset the index of the message in the array.
+	 * @param length the length of the message.
+	 * @param level a compression level from 0 to 9, or DEFAULT_LEVEL.
+	 * @param output the array to write to. It must have room for
+	 * getMaxCompressedLength(length) bytes from outputOffset on.
+	 * @param outputOffset the index in output to start writing at.
+	 * @return the length of the compressed message.
+	 * @throws Exception if the message couldn't be compressed.
+	 */
+	public static int compress(byte[] message, int offset, int length,
+			int level, byte[] output, int outputOffset) throws Exception {
+		Deflater deflater = leaseDeflater(level);
+		try {
+			int position = outputOffset;
+			output[position++] = (byte) 0x1f;
+			output[position++] = (byte) 0x8b;
+			output[position++] = (byte) Deflater.DEFLATED;
+			for (int i = 0; i < 6; i++) {
+				output[position++] = 0;
+			}
+			output[position++] = (byte) 0xff;
+
+			deflater.setInput(message, offset, length);
+			deflater.finish();
+			int end = output.length - TRAILER_LENGTH;
+			while (!deflater.finished()) {
+				if (position == end) {
+					throw new ZipException("Output buffer too small");
+				}
+				position += deflater.deflate(output, position, end - position);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(message, offset, length);
+			writeIntLE(output, position, (int) crc.getValue());
+			writeIntLE(output, position + 4, length);
+
+			return position + TRAILER_LENGTH - outputOffset;
+		} finally {
+			releaseDeflater(deflater);
+		}
+	}
+
+	/**
+	 * Returns the largest number of bytes a message of the given length can
+	 * compress to, header and trailer included.
+	 * @param length the length of a message.
+	 * @return the maximum compressed length.
+	 */
+	public static int getMaxCompressedLength(int length) {
+
+		/*The bound used by zlib for deflate, plus the stored block headers
+		 * a raw deflate stream may need.*/
+		return HEADER_LENGTH + length + (length >> 12) + (length >> 14) +
+				(length >> 25) + 13 + TRAILER_LENGTH;
+	}
+
+	/**
+	 * Decompresses a message.
 	 * @param message a message to be decompressed.
 	 * @param length the length of the message decompressed.
 	 * @return the decompressed message.
 	 */
 	public static byte[] decompress(byte[] message, int length)
 			throws Exception  {
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-		GZIPInputStream zipStream;
-		zipStream = new GZIPInputStream(new ByteArrayInputStream(message));
+		return decompress(ByteBuffer.wrap(message), length);
+	}
+
+	/**
+	 * Decompresses the remaining bytes of a buffer without copying them
+	 * first. The position of the given buffer is not changed.
+	 * @param message a buffer holding the message to be decompressed.
+	 * @param length the length of the message decompressed.
+	 * @return the decompressed message.
+	 */
+	public static byte[] decompress(ByteBuffer message, int length)
+			throws Exception {
+		byte[] decompressed = new byte[length];
+		decompress(message, ByteBuffer.wrap(decompressed));
+		return decompressed;
+	}
+
+	/**
+	 * Decompresses the remaining bytes of a buffer straight into another
+	 * buffer, filling it up to its limit in one go. The position of the
+	 * message buffer is not changed.
+	 * @param message a buffer holding the message to be decompressed.
+	 * @param output a buffer with exactly the decompressed length remaining.
+	 * @throws Exception if the message couldn't be decompressed.
+	 */
+	public static void decompress(ByteBuffer message, ByteBuffer output)
+			throws Exception {
+		ByteBuffer input = message.duplicate();
+		skipHeader(input);
+
+		int start = output.position();
+		Inflater inflater = leaseInflater();
+		try {
+			inflater.setInput(input);
+			while (output.hasRemaining() && !inflater.finished()) {
+				if (inflater.inflate(output) == 0 && (inflater.needsInput() ||
+						inflater.needsDictionary())) {
+					throw new ZipException("Truncated GZIP data");
+				}
+			}
+			if (output.hasRemaining()) {
+				throw new ZipException("GZIP data shorter than expected");
+			}
+
+			/*Check the trailer if the whole stream was inflated.*/
+			if (inflater.finished()) {
+				int trailer = input.position() + input.remaining() -
+						inflater.getRemaining();
+				if (input.limit() - trailer >= TRAILER_LENGTH) {
+					CRC32 crc = new CRC32();
+					ByteBuffer inflated = output.duplicate();
+					inflated.flip();
+					inflated.position(start);
+					crc.update(inflated);
+					if (readIntLE(input, trailer) != (int) crc.getValue()) {
+						throw new ZipException("Corrupt GZIP trailer");
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			releaseInflater(inflater);
+		}
+	}
+
+	/**
+	 * Moves the position of a buffer past a GZIP header.
+	 * @param input a buffer positioned at a GZIP header.
+	 * @throws ZipException if the header is not a GZIP header.
+	 */
+	private static void skipHeader(ByteBuffer input) throws ZipException {
+		if (input.remaining() < HEADER_LENGTH ||
+				(input.get() & 0xff) != 0x1f || (input.get() & 0xff) != 0x8b ||
+				input.get() != Deflater.DEFLATED) {
+			throw new ZipException("Not in GZIP format");
+		}
+		int flags = input.get() & 0xff;
+		input.position(input.position() + 6);
 
-		for (int i = 0; i < length; i++) {
-			byteStream.write(zipStream.read());
+		if ((flags & FEXTRA) != 0) {
+			int extraLength = (input.get() & 0xff) | (input.get() & 0xff) << 8;
+			input.position(input.position() + extraLength);
+		}
+		if ((flags & FNAME) != 0) {
+			while (input.get() != 0) {
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (input.get() != 0) {
+			}
 		}
-		zipStream.close();
-		byteStream.close();
+		if ((flags & FHCRC) != 0) {
+			input.position(input.position() + 2);
+		}
+	}
+
+	/**
+	 * Takes a Deflater from the pool, or creates one.
+	 * @param level the compression level to use.
+	 * @return a reset Deflater writing raw deflate data.
+	 */
+	private static Deflater leaseDeflater(int level) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+		pooledDeflaters.decrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	/**
+	 * Gives a Deflater back to the pool, or frees it if the pool is full.
+	 * @param deflater a Deflater.
+	 */
+	private static void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+			deflaters.add(deflater);
+		} else {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
 
-		return byteStream.toByteArray();
+	/**
+	 * Takes an Inflater from the pool, or creates one.
+	 * @return a reset Inflater reading raw deflate data.
+	 */
+	private static Inflater leaseInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			return new Inflater(true);
+		}
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+
+	/**
+	 * Gives an Inflater back to the pool, or frees it if the pool is full.
+	 * @param inflater an Inflater.
+	 */
+	private static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+			inflaters.add(inflater);
+		} else {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Writes an int in little endian byte order, as GZIP wants it.
+	 */
+	private static void writeIntLE(byte[] array, int offset, int value) {
+		array[offset] = (byte) value;
+		array[offset + 1] = (byte) (value >> 8);
+		array[offset + 2] = (byte) (value >> 16);
+		array[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * Reads an int in little endian byte order.
+	 */
+	private static int readIntLE(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset) & 0xff) | (buffer.get(offset + 1) & 0xff)
+				<< 8 | (buffer.get(offset + 2) & 0xff) << 16 |
+				(buffer.get(offset + 3) & 0xff) << 24;
 	}
 }
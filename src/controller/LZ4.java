@@ -0,0 +1,262 @@
+package controller;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A class used to decompress and compress messages using the LZ4 block
+ * format.
+ *
+ * LZ4 trades compression ratio for speed. There is no entropy coding, only
+ * literal runs and back references found through a small hash table, which
+ * makes it a good fit for short chat lines where latency matters more than
+ * the last few bytes.
+ * @author c12mkn
+ *
+ */
+public class LZ4 {
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int MIN_HASH_LOG = 8;
+	private static final int MAX_HASH_LOG = 12;
+	private static final int SKIP_TRIGGER = 6;
+
+	private static final ThreadLocal<int[]> hashTables =
+			new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << MAX_HASH_LOG];
+		}
+	};
+
+	/**
+	 * Compresses a given message using LZ4 compression.
+	 * @param message a message to be compressed.
+	 * @return the compressed message.
+	 */
+	public static byte[] compress(byte[] message) {
+		byte[] output = new byte[getMaxCompressedLength(message.length)];
+		int length = compress(message, 0, message.length, output, 0);
+		return Arrays.copyOf(output, length);
+	}
+
+	/**
+	 * Compresses a part of an array straight into another array.
+	 * @param message an array holding the message.
+	 * @param offset the index of the message in the array.
+	 * @param length the length of the message.
+	 * @param output the array to write to. It must have room for
+	 * getMaxCompressedLength(length) bytes from outputOffset on.
+	 * @param outputOffset the index in output to start writing at.
+	 * @return the length of the compressed message.
+	 */
+	public static int compress(byte[] message, int offset, int length,
+			byte[] output, int outputOffset) {
+		int end = offset + length;
+		int anchor = offset;
+		int op = outputOffset;
+
+		if (length >= MATCH_FIND_LIMIT + 1) {
+			int hashLog = Math.max(MIN_HASH_LOG, Math.min(MAX_HASH_LOG,
+					32 - Integer.numberOfLeadingZeros(length)));
+			int[] table = hashTables.get();
+
+			/*Positions are stored plus one, so 0 means an empty slot.*/
+			Arrays.fill(table, 0, 1 << hashLog, 0);
+
+			int matchStartLimit = end - MATCH_FIND_LIMIT;
+			int matchEndLimit = end - LAST_LITERALS;
+			int ip = offset;
+			int misses = 0;
+
+			while (ip < matchStartLimit) {
+				int sequence = readInt(message, ip);
+				int hash = hash(sequence, hashLog);
+				int reference = table[hash] - 1 + offset;
+				table[hash] = ip - offset + 1;
+
+				if (reference < offset || ip - reference > MAX_OFFSET ||
+						readInt(message, reference) != sequence) {
+
+					/*Take longer steps the longer nothing matches.*/
+					ip += 1 + (misses++ >>> SKIP_TRIGGER);
+					continue;
+				}
+				misses = 0;
+
+				/*Extend the match backwards over equal literals.*/
+				while (ip > anchor && reference > offset &&
+						message[ip - 1] == message[reference - 1]) {
+					ip--;
+					reference--;
+				}
+
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchEndLimit &&
+						message[ip + matchLength] ==
+						message[reference + matchLength]) {
+					matchLength++;
+				}
+
+				op = writeSequence(message, anchor, ip - anchor, ip - reference,
+						matchLength, output, op);
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		/*The last bytes are always literals.*/
+		op = writeLiterals(message, anchor, end - anchor, 0, output, op);
+		return op - outputOffset;
+	}
+
+	/**
+	 * Returns the largest number of bytes a message of the given length can
+	 * compress to.
+	 * @param length the length of a message.
+	 * @return the maximum compressed length.
+	 */
+	public static int getMaxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Decompresses the remaining bytes of a buffer without copying them
+	 * first. The position of the given buffer is not changed.
+	 * @param message a buffer holding the message to be decompressed.
+	 * @param length the length of the message decompressed.
+	 * @return the decompressed message.
+	 * @throws DataFormatException if the message is not valid LZ4 data or
+	 * doesn't decompress to exactly the given length.
+	 */
+	public static byte[] decompress(ByteBuffer message, int length)
+			throws DataFormatException {
+		byte[] output = new byte[length];
+		int ip = message.position();
+		int end = message.limit();
+		int op = 0;
+
+		try {
+			while (true) {
+				int token = message.get(ip++) & 0xFF;
+
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = message.get(ip++) & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				if (op + literals > length || ip + literals > end) {
+					throw new DataFormatException("Literals out of bounds");
+				}
+				ByteBuffer source = message.duplicate();
+				source.position(ip);
+				source.get(output, op, literals);
+				ip += literals;
+				op += literals;
+
+				/*The last sequence has no match.*/
+				if (ip == end) {
+					break;
+				}
+
+				int matchOffset = (message.get(ip) & 0xFF) |
+						(message.get(ip + 1) & 0xFF) << 8;
+				ip += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = message.get(ip++) & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				if (matchOffset == 0 || matchOffset > op ||
+						op + matchLength > length) {
+					throw new DataFormatException("Match out of bounds");
+				}
+
+				/*Copy byte by byte, the match may overlap what it writes.*/
+				int reference = op - matchOffset;
+				for (int i = 0; i < matchLength; i++) {
+					output[op++] = output[reference++];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new DataFormatException("Truncated LZ4 data");
+		}
+
+		if (op != length) {
+			throw new DataFormatException("LZ4 data shorter than expected");
+		}
+		return output;
+	}
+
+	/**
+	 * Writes one sequence: a run of literals followed by a match.
+	 * @return the output index after the sequence.
+	 */
+	private static int writeSequence(byte[] message, int literalStart,
+			int literalLength, int matchOffset, int matchLength,
+			byte[] output, int op) {
+		int matchCode = matchLength - MIN_MATCH;
+		op = writeLiterals(message, literalStart, literalLength,
+				Math.min(matchCode, 15), output, op);
+
+		output[op++] = (byte) matchOffset;
+		output[op++] = (byte) (matchOffset >>> 8);
+		if (matchCode >= 15) {
+			op = writeLength(matchCode - 15, output, op);
+		}
+		return op;
+	}
+
+	/**
+	 * Writes a token and a run of literals.
+	 * @return the output index after the literals.
+	 */
+	private static int writeLiterals(byte[] message, int start, int length,
+			int matchCode, byte[] output, int op) {
+		output[op++] = (byte) (Math.min(length, 15) << 4 | matchCode);
+		if (length >= 15) {
+			op = writeLength(length - 15, output, op);
+		}
+		System.arraycopy(message, start, output, op, length);
+		return op + length;
+	}
+
+	/**
+	 * Writes the extra bytes of a literal or match length of 15 or more.
+	 * @return the output index after the length.
+	 */
+	private static int writeLength(int length, byte[] output, int op) {
+		while (length >= 255) {
+			output[op++] = (byte) 255;
+			length -= 255;
+		}
+		output[op++] = (byte) length;
+		return op;
+	}
+
+	/**
+	 * Reads four bytes as an int, in the order they come in.
+	 */
+	private static int readInt(byte[] array, int offset) {
+		return (array[offset] & 0xFF) | (array[offset + 1] & 0xFF) << 8 |
+				(array[offset + 2] & 0xFF) << 16 | array[offset + 3] << 24;
+	}
+
+	/**
+	 * Hashes four bytes into an index of the hash table.
+	 */
+	private static int hash(int sequence, int hashLog) {
+		return (sequence * -1640531535) >>> (32 - hashLog);
+	}
+}
@@ -0,0 +1,269 @@
+package controller;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import model.ChatServer;
+
+/**
+ * Measures how far away the chat servers are.
+ *
+ * A probe times how long a TCP connection to a server takes to be set up,
+ * then closes it without joining. All servers of a list are probed at
+ * once, but no more than MAX_PROBES at a time, and a probe taking longer
+ * than PROBE_TIMEOUT counts as a failure. The measurements of each address
+ * and port are smoothed the way TCP smooths its round trip times, so one
+ * slow connect doesn't push a close server to the bottom. Probes a server
+ * has had recently aren't repeated. Subscribe it to the server list
+ * changes to have every new list probed.
+ * @author c12mkn
+ *
+ */
+public class LatencyProber implements EventBus.Subscriber<List<ChatServer>> {
+	private static final int MAX_PROBES = 8;
+	private static final int PROBE_TIMEOUT = 1000;
+	private static final long PROBE_INTERVAL = 10000;
+	private static final double SMOOTHING = 0.125;
+
+	private TaskExecutor executor;
+	private Semaphore probeLimit;
+	private ConcurrentHashMap<String, Estimate> estimates;
+
+	/*Guarded by the prober itself.*/
+	private int probing;
+
+	/**
+	 * The measurements of one chat server.
+	 * @author c12mkn
+	 *
+	 */
+	private static class Estimate {
+		private double smoothedTime = -1;
+		private int samples;
+		private int failures;
+		private boolean reachable = true;
+		private boolean probing;
+		private long lastProbe = Long.MIN_VALUE / 2;
+	}
+
+	/**
+	 * Constructs a LatencyProber.
+	 */
+	public LatencyProber() {
+		executor = TaskExecutor.getDefault();
+		probeLimit = new Semaphore(MAX_PROBES);
+		estimates = new ConcurrentHashMap<String, Estimate>();
+	}
+
+	@Override
+	public void onEvent(List<ChatServer> chatServers) {
+		probe(chatServers);
+	}
+
+	/**
+	 * Probes the servers of a list in the background, except the ones
+	 * probed recently or being probed already.
+	 * @param chatServers the chat servers.
+	 */
+	public void probe(List<ChatServer> chatServers) {
+		long now = System.currentTimeMillis();
+		for (final ChatServer chatServer : chatServers) {
+			final Estimate estimate = getEstimate(chatServer);
+			synchronized (estimate) {
+				if (estimate.probing || now - estimate.lastProbe <
+						PROBE_INTERVAL) {
+					continue;
+				}
+				estimate.probing = true;
+				estimate.lastProbe = now;
+			}
+
+			synchronized (this) {
+				probing++;
+			}
+			if (executor.submit("Probe " + chatServer.getEndpoint(),
+					probeLimit, new Runnable() {
+				@Override
+				public void run() {
+					probe(chatServer, estimate);
+				}
+			}) == null) {
+				finished(estimate);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the probes started to finish.
+	 * @param timeout the longest time to wait, in milliseconds.
+	 * @return true if no probe is running.
+	 */
+	public synchronized boolean awaitProbes(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		try {
+			while (probing > 0 && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return probing == 0;
+	}
+
+	/**
+	 * Returns the smoothed connect time of a server.
+	 * @param chatServer the chat server.
+	 * @return the time in milliseconds, or -1 if it's unknown or the
+	 * server couldn't be reached the last time.
+	 */
+	public double getConnectTime(ChatServer chatServer) {
+		Estimate estimate = estimates.get(chatServer.getEndpoint());
+		if (estimate == null) {
+			return -1;
+		}
+		synchronized (estimate) {
+			return estimate.reachable ? estimate.smoothedTime : -1;
+		}
+	}
+
+	/**
+	 * Tells whether the latest probe of a server failed.
+	 * @param chatServer the chat server.
+	 * @return true if the server couldn't be reached.
+	 */
+	public boolean isUnreachable(ChatServer chatServer) {
+		Estimate estimate = estimates.get(chatServer.getEndpoint());
+		if (estimate == null) {
+			return false;
+		}
+		synchronized (estimate) {
+			return !estimate.reachable;
+		}
+	}
+
+	/**
+	 * Returns a list of servers ordered from the closest to the farthest.
+	 * Servers not measured yet follow in their original order, and the
+	 * unreachable ones come last.
+	 * @param chatServers the chat servers.
+	 * @return a new, ranked list.
+	 */
+	public List<ChatServer> rank(List<ChatServer> chatServers) {
+
+		/*Measurements may change while sorting, so they're read once.*/
+		final double[] times = new double[chatServers.size()];
+		Integer[] order = new Integer[chatServers.size()];
+		for (int i = 0; i < times.length; i++) {
+			ChatServer chatServer = chatServers.get(i);
+			times[i] = getConnectTime(chatServer);
+			if (times[i] < 0) {
+				times[i] = isUnreachable(chatServer) ? Double.MAX_VALUE :
+						Double.MAX_VALUE / 2;
+			}
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(times[a], times[b]);
+			}
+		});
+
+		ArrayList<ChatServer> ranked = new ArrayList<ChatServer>(times.
+				length);
+		for (Integer i : order) {
+			ranked.add(chatServers.get(i));
+		}
+		return Collections.unmodifiableList(ranked);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LatencyProber[servers=" + estimates.size() + ", probing=" +
+				probing + "]";
+	}
+
+	/**
+	 * Times a connection to a server and records the result.
+	 * @param chatServer the chat server.
+	 * @param estimate the measurements of the server.
+	 */
+	private void probe(ChatServer chatServer, Estimate estimate) {
+		double time = -1;
+		Socket socket = new Socket();
+		try {
+			InetSocketAddress address = new InetSocketAddress(InetAddress.
+					getByAddress(chatServer.getAddress()), chatServer.
+					getPort());
+			long start = System.nanoTime();
+			socket.connect(address, PROBE_TIMEOUT);
+			time = (System.nanoTime() - start) / 1e6;
+		} catch (IOException e) {
+
+			/*Refused, unreachable or timed out.*/
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		synchronized (estimate) {
+			if (time < 0) {
+				estimate.failures++;
+				estimate.reachable = false;
+			} else {
+				estimate.smoothedTime = estimate.samples == 0 ? time :
+						estimate.smoothedTime + SMOOTHING * (time -
+						estimate.smoothedTime);
+				estimate.samples++;
+				estimate.reachable = true;
+			}
+		}
+		finished(estimate);
+	}
+
+	/**
+	 * Marks a probe as finished.
+	 * @param estimate the measurements of the probed server.
+	 */
+	private void finished(Estimate estimate) {
+		synchronized (estimate) {
+			estimate.probing = false;
+		}
+		synchronized (this) {
+			probing--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the measurements of a server, creating them if there are
+	 * none.
+	 * @param chatServer the chat server.
+	 * @return the measurements.
+	 */
+	private Estimate getEstimate(ChatServer chatServer) {
+		String key = chatServer.getEndpoint();
+		Estimate estimate = estimates.get(key);
+		if (estimate == null) {
+			Estimate created = new Estimate();
+			estimate = estimates.putIfAbsent(key, created);
+			if (estimate == null) {
+				estimate = created;
+			}
+		}
+		return estimate;
+	}
+}
@@ -0,0 +1,31 @@
+package controller;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * A listener class defining behavior when the user selects the leave server
+ * menu item. The chat server of the selected tab is left and its tab
+ * closed.
+ * @author c12mkn
+ *
+ */
+public class LeaveServerListener implements ActionListener {
+	private SessionManager sessionManager;
+
+	/**
+	 * Constructs a LeaveServerListener.
+	 * @param sessionManager the sessions of the chat client.
+	 */
+	public LeaveServerListener(SessionManager sessionManager) {
+		this.sessionManager = sessionManager;
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		Session current = sessionManager.getCurrent();
+		if (current != null) {
+			sessionManager.close(current);
+		}
+	}
+}
@@ -2,109 +2,208 @@ package controller;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
-import javax.swing.SwingWorker;
 
 import model.ChatServer;
 import view.GUI;
 
 /**
  * A listener class defining behavior when the user selects the server list
- * menu item.
+ * menu item, or the one joining a server in a new tab. The server list
+ * comes from a cache, so once a list has been fetched the chat servers are
+ * shown right away. They are shown closest first, with their connect times
+ * as measured by a LatencyProber, and the closest one is selected and
+ * warmed in a ConnectionPool while the user chooses.
  * @author c12mkn
  *
  */
-public class ListServersListener extends Observable implements ActionListener{
+public class ListServersListener implements ActionListener{
+	/*Clicks while waiting for the first list are ignored, rather than
+	 * opening one chooser each once it arrives.*/
+	private static final int MAX_LIST_REQUESTS = 1;
+	private static final int MAX_CONNECT_ATTEMPTS = 2;
+
+	/*How long a first list waits to be measured before it's shown.*/
+	private static final long PROBE_WAIT = 1000;
+
 	private GUI gui;
-	private NameServerConnection connection;
+	private ServerListCache serverListCache;
+	private LatencyProber latencyProber;
+	private ConnectionPool connectionPool;
+	private SessionManager sessionManager;
+	private boolean newSession;
+	private TaskExecutor executor;
+	private Semaphore nameServerLimit;
+	private Semaphore connectLimit;
 
 	/**
 	 * Constructs a ListServerListener.
 	 * @param gui a GUI to display messages at.
-	 * @param connection a NameServerConnection object to fetch chat server
-	 * lists via.
-	 * @param connectionHandler a ConnectionHandler object to provide with
-	 * a chat server connection.
+	 * @param serverListCache the cache to get chat server lists from.
+	 * @param latencyProber the prober measuring the chat servers.
+	 * @param connectionPool the pool to take chat server connections from.
+	 * @param sessionManager the sessions to join the chosen servers in.
+	 * @param newSession true to join the chosen servers in new tabs, false
+	 * to join them in place of the server of the selected tab.
 	 */
-	public ListServersListener(GUI gui, NameServerConnection connection,
-			Observer connectionHandler) {
-		this.connection = connection;
+	public ListServersListener(GUI gui, ServerListCache serverListCache,
+			LatencyProber latencyProber, ConnectionPool connectionPool,
+			SessionManager sessionManager, boolean newSession) {
+		this.serverListCache = serverListCache;
+		this.latencyProber = latencyProber;
+		this.connectionPool = connectionPool;
 		this.gui = gui;
-		addObserver(connectionHandler);
+		executor = TaskExecutor.getDefault();
+		nameServerLimit = new Semaphore(MAX_LIST_REQUESTS);
+		connectLimit = new Semaphore(MAX_CONNECT_ATTEMPTS);
+		this.sessionManager = sessionManager;
+		this.newSession = newSession;
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		new SwingWorker<Void, ChatServer>() {
-			private String[] selectionValues;
-			private ArrayList<ChatServer> chatServers;
 
+		/*If there is a list, stale or not, show it right away.*/
+		List<ChatServer> cachedServers = serverListCache.
+				getCachedServerList();
+		if (cachedServers != null) {
+
+			/*Measurements that have grown old are taken again, for the
+			 * next time.*/
+			latencyProber.probe(cachedServers);
+			chooseServer(cachedServers);
+			return;
+		}
+
+		if (!nameServerLimit.tryAcquire()) {
+			return;
+		}
+		if (executor.submit("Server list", new Runnable() {
 			@Override
-			protected Void doInBackground() {
-				selectionValues = null;
+			public void run() {
+				final List<ChatServer> chatServers;
 
 				try {
 
-					/*Get a list of chat servers and build from it a list
-					 * of selections for the user.*/
-					chatServers = connection.getServerList();
-					selectionValues = makeSelectionValues(chatServers);
+					/*Get a list of chat servers and measure them.*/
+					chatServers = serverListCache.getServerList();
+					latencyProber.probe(chatServers);
+					latencyProber.awaitProbes(PROBE_WAIT);
 				} catch (Exception e) {
 					e.printStackTrace();
 
 					/*If the server list couldn't be fetched, display an
 					 * error message.*/
-					SwingUtilities.invokeLater(new Runnable() {
-						@Override
-						public void run() {
-							JOptionPane.showMessageDialog(gui, "Couldn't " +
-									"fetch chat server list.", "Chat server" +
-											" list", JOptionPane.ERROR_MESSAGE);
-						}
-					});
+					displayErrorMessageWhenPossible("Couldn't fetch chat " +
+							"server list.");
+					return;
+				} finally {
+					nameServerLimit.release();
 				}
-				return null;
+
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						chooseServer(chatServers);
+					}
+				});
 			}
+		}) == null) {
+			nameServerLimit.release();
+		}
+	}
 
-			@Override
-			public void done() {
-				/*If no selection values could be built, don't prompt the
-				 * user.*/
-				if (selectionValues == null) {
-					return;
-				}
+	/**
+	 * Prompts the user for a chat server and connects to the chosen one in
+	 * the background.
+	 * @param chatServers a list of chat servers.
+	 */
+	private void chooseServer(List<ChatServer> chatServers) {
+		List<ChatServer> rankedServers = latencyProber.rank(chatServers);
+		String[] selectionValues = makeSelectionValues(rankedServers);
 
-				/*Prompt the user for a chat server.*/
-				String userInput = promptUser(selectionValues);
+		/*Prompt the user for a chat server, suggesting the closest one if
+		 * it has been measured. It's likely to be chosen, so connect to it
+		 * while the user makes up their mind, unless a tab is already on
+		 * it.*/
+		String suggested = null;
+		if (!rankedServers.isEmpty() && latencyProber.getConnectTime(
+				rankedServers.get(0)) >= 0) {
+			suggested = selectionValues[0];
+			if (sessionManager.find(rankedServers.get(0)) == null) {
+				connectionPool.prewarm(rankedServers.get(0));
+			}
+		}
+		String userInput = promptUser(selectionValues, suggested);
 
-				/*If the user didn't enter anything, return.*/
-				if (userInput == null) {
-					return;
-				}
+		/*If the user didn't enter anything, return.*/
+		if (userInput == null) {
+			return;
+		}
+
+		/*If the user selected a server, proceed.*/
+		final ChatServer selectedServer = getSelectedServer(userInput,
+				selectionValues, rankedServers);
 
-				/*If the user selected a server, proceed.*/
-				ChatServer selectedServer = getSelectedServer(userInput,
-						chatServers);
-				new ConnectionHelperThread(selectedServer).start();
+		/*Join it in a new tab, unless it has one already, or in place of
+		 * the server of the selected tab. Without tabs, there is no server
+		 * to replace.*/
+		Session current = sessionManager.getCurrent();
+		final boolean opened = newSession || current == null;
+		final Session session;
+		if (opened) {
+			Session existing = sessionManager.find(selectedServer);
+			if (existing != null) {
+				sessionManager.select(existing);
+				return;
 			}
-		}.execute();
+			session = sessionManager.open(selectedServer);
+		} else {
+			session = current;
+			sessionManager.setChatServer(session, selectedServer);
+		}
+
+		executor.submit("Connect to " + selectedServer.getName(),
+				connectLimit, new Runnable() {
+			@Override
+			public void run() {
+				connect(session, selectedServer, opened);
+			}
+		});
 	}
 
 	/**
-	 * Makes an array of selection values from a provided list of servers.
-	 * @param serverList an array list of ChatServer objects.
+	 * Makes an array of selection values from a provided list of servers,
+	 * each name followed by the connect time of the server if known. A
+	 * value that would equal an earlier one is followed by the address of
+	 * its server too, since the chooser can't tell equal values apart.
+	 * @param serverList a list of ChatServer objects.
 	 * @return an array of selection values.
 	 */
-	private String[] makeSelectionValues(ArrayList<ChatServer> serverList) {
+	private String[] makeSelectionValues(List<ChatServer> serverList) {
 		String[] selectionValues = new String[serverList.size()];
+		HashSet<String> used = new HashSet<String>();
 
 		for (int i = 0; i < serverList.size(); i++) {
-			selectionValues[i] = serverList.get(i).getName();
+			ChatServer server = serverList.get(i);
+			double connectTime = latencyProber.getConnectTime(server);
+			if (connectTime >= 0) {
+				selectionValues[i] = server.getName() + " (" + Math.round(
+						connectTime) + " ms)";
+			} else if (latencyProber.isUnreachable(server)) {
+				selectionValues[i] = server.getName() + " (unreachable)";
+			} else {
+				selectionValues[i] = server.getName();
+			}
+			if (!used.add(selectionValues[i])) {
+				selectionValues[i] += " [" + server.getEndpoint() + "]";
+				used.add(selectionValues[i]);
+			}
 		}
 
 		return selectionValues;
@@ -113,29 +212,33 @@ public class ListServersListener extends Observable implements ActionListener{
 	/**
 	 * Prompts the user to choose a server and returns the chosen one.
 	 * @param selectionValues an array of selection values.
+	 * @param suggested the selection value selected at first, or null.
 	 * @return the selected server as a string.
 	 */
-	private String promptUser(String[] selectionValues) {
+	private String promptUser(String[] selectionValues, String suggested) {
 		String userInput = (String) JOptionPane.showInputDialog(gui,
 				"Choose a chat server: ", "Chat servers", JOptionPane.
-				QUESTION_MESSAGE, null, selectionValues, null);
+				QUESTION_MESSAGE, null, selectionValues, suggested);
 		return userInput;
 	}
 
 	/**
-	 * Returns the user selected server by providing the name of the selected
-	 * server.
-	 * @param userInput a user selected server name.
-	 * @param serverList a list of chat servers.
+	 * Returns the user selected server by providing the selection value of
+	 * the selected server. The chooser returns the very selection value
+	 * chosen, which is looked up by identity.
+	 * @param userInput a user selected selection value.
+	 * @param selectionValues the selection values of the servers.
+	 * @param serverList the chat servers, in the order of their values.
 	 * @return the selected server as a ChatServer object.
 	 */
 	private ChatServer getSelectedServer(String userInput,
-			ArrayList<ChatServer> serverList) {
+			String[] selectionValues, List<ChatServer> serverList) {
 		ChatServer returnValue = null;
 
-		for (ChatServer server : serverList) {
-			if (server.getName().equals(userInput)) {
-				returnValue = server;
+		for (int i = 0; i < selectionValues.length; i++) {
+			if (selectionValues[i] == userInput) {
+				returnValue = serverList.get(i);
+				break;
 			}
 		}
 
@@ -143,36 +246,47 @@ public class ListServersListener extends Observable implements ActionListener{
  	}
 
 	/**
-	 * Inner class used briefly when connecting to a chat server to prevent
-	 * performance issues in the Swing thread.
-	 * @author c12mkn
-	 *
+	 * Takes a connection to a chat server from the pool and publishes it
+	 * to a session. Run in the background to prevent performance issues in
+	 * the Swing thread.
+	 * @param session the session to join the chat server in.
+	 * @param chatServer the chat server to connect to.
+	 * @param opened true if the tab of the session was opened for this
+	 * server, and should be closed if it can't be reached.
 	 */
-	private class ConnectionHelperThread extends Thread {
-		private ChatServer chatServer;
-
-		public ConnectionHelperThread(ChatServer chatServer) {
-			this.chatServer = chatServer;
-		}
-
-		@Override
-		public void run() {
-			try {
-				ChatServerConnection chatServerConnection =
-						new ChatServerConnection(chatServer);
-				setChanged();
-				notifyObservers(chatServerConnection);
-				clearChanged();
-			} catch (Exception e) {
+	private void connect(final Session session, ChatServer chatServer,
+			boolean opened) {
+		try {
+			ChatServerConnection chatServerConnection =
+					connectionPool.take(chatServer);
+			session.getConnectionHandler().getConnectionBus().publish(
+					chatServerConnection);
+		} catch (Exception e) {
+			if (opened) {
 				SwingUtilities.invokeLater(new Runnable() {
 					@Override
 					public void run() {
-						JOptionPane.showMessageDialog(gui, "Couldn't " +
-								"connect to chat server.", "Chat server" +
-										" list", JOptionPane.ERROR_MESSAGE);
+						sessionManager.close(session);
 					}
 				});
 			}
+			displayErrorMessageWhenPossible("Couldn't connect to chat " +
+					"server.");
 		}
 	}
+
+	/**
+	 * Help function to display an error message when convenient for the Swing
+	 * thread.
+	 * @param message an error message to be displayed.
+	 */
+	private void displayErrorMessageWhenPossible(final String message) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				JOptionPane.showMessageDialog(gui, message, "Chat server list",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		});
+	}
 }
@@ -1,43 +1,103 @@
 package controller;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import model.ChatServer;
 import model.PDU;
 
 /**
  * A class representing the name server connection.
+ *
+ * Any number of name servers may be configured. A server list request is
+ * sent to all of them at once over a single channel, and resent with
+ * exponential backoff to the ones that haven't answered, so a lost
+ * datagram costs a retransmission instead of the whole timeout. Answers
+ * are matched to name servers by their source address. The list is
+ * returned as soon as one name server has answered in full, merged with
+ * whatever the others have answered by then, without duplicates. A list
+ * sent in several datagrams is put together by a ServerListReassembler,
+ * and asked for again once its datagrams stop arriving for a while.
  * @author c12mkn
  *
  */
 public class NameServerConnection {
 	private static final int TIMEOUT_TIME = 3000;
+	private static final int INITIAL_RETRANSMIT_TIME = 250;
+	private static final int FRAGMENT_TIMEOUT = 200;
 	private static final int UDP_MAX_SIZE = 65507;
 	private static final int UDP_MAX_BUFFER = 5*UDP_MAX_SIZE;
 
-	private DatagramSocket socket;
-	private InetAddress address;
-	private int port;
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer receiveBuffer;
+	private ArrayList<InetSocketAddress> nameServers;
 	private byte[] serverRequest;
 
 	/**
-	 * Constructs a name server connection object from a given hostname and
-	 * port.
-	 * @param hostname a hostname of a name server.
-	 * @param port a port of a name server.
-	 * @throws Exception
+	 * The state of a request to one name server.
+	 * @author c12mkn
+	 *
+	 */
+	private static class Request {
+		private InetSocketAddress address;
+		private long nextSend;
+		private long retransmitTime;
+		private ServerListReassembler serverList;
+
+		/**
+		 * Constructs a request to a name server.
+		 * @param address the address of the name server.
+		 */
+		private Request(InetSocketAddress address) {
+			this.address = address;
+			retransmitTime = INITIAL_RETRANSMIT_TIME;
+			serverList = new ServerListReassembler();
+		}
+	}
+
+	/**
+	 * Constructs a name server connection object from one or more hostnames
+	 * and a port.
+	 * @param hostnames a comma separated list of name servers, each a
+	 * hostname optionally followed by a colon and a port.
+	 * @param port the port of the name servers not given one.
+	 * @throws Exception if none of the name servers could be found.
 	 */
-	public NameServerConnection(String hostname, int port) throws Exception {
-		this.port = port;
-		address = InetAddress.getByName(hostname);
-		socket = new DatagramSocket();
-		socket.setSoTimeout(TIMEOUT_TIME);
-		socket.setReceiveBufferSize(UDP_MAX_BUFFER);
-		serverRequest = PDUFactory.makeServerListRequest().getBytes();
+	public NameServerConnection(String hostnames, int port) throws Exception {
+		nameServers = new ArrayList<InetSocketAddress>();
+		for (String entry : hostnames.split(",")) {
+			InetSocketAddress address = parseAddress(entry.trim(), port);
+			if (address != null && !address.isUnresolved() &&
+					!nameServers.contains(address)) {
+				nameServers.add(address);
+			}
+		}
+		if (nameServers.isEmpty()) {
+			throw new IOException("Couldn't find the name server " +
+					hostnames.trim());
+		}
+
+		channel = DatagramChannel.open();
+		channel.socket().setReceiveBufferSize(UDP_MAX_BUFFER);
+		channel.configureBlocking(false);
+		channel.bind(null);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		receiveBuffer = ByteBuffer.allocate(UDP_MAX_SIZE);
+		PDU request = PDUFactory.makeServerListRequest();
+		serverRequest = request.getBytes();
+		request.release();
 	}
 
 	/**
@@ -45,113 +105,175 @@ public class NameServerConnection {
 	 * @return a list of chat servers.
 	 * @throws Exception if the list could not be received.
 	 */
-	public ArrayList<ChatServer> getServerList() throws Exception {
-		requestServerList();
-		return createServerList(receivePDU());
+	public synchronized ArrayList<ChatServer> getServerList() throws
+			Exception {
+		HashMap<SocketAddress, Request> requests =
+				new HashMap<SocketAddress, Request>();
+		for (InetSocketAddress address : nameServers) {
+			requests.put(address, new Request(address));
+		}
+
+		/*Answers to an earlier request that arrived too late would be
+		 * taken for answers to this one.*/
+		discardReceived();
+
+		long now = System.currentTimeMillis();
+		long deadline = now + TIMEOUT_TIME;
+		Request answered = null;
+		while (answered == null && now < deadline) {
+			long wait = deadline - now;
+			for (Request request : requests.values()) {
+				if (request.nextSend <= now) {
+					send(request, now);
+				}
+				wait = Math.min(wait, request.nextSend - now);
+			}
+
+			selector.select(Math.max(1, wait));
+			selector.selectedKeys().clear();
+			answered = receiveAll(requests);
+			now = System.currentTimeMillis();
+		}
+
+		/*Take along whatever else has already arrived.*/
+		receiveAll(requests);
+
+		ArrayList<ChatServer> chatServers = mergeAnswers(requests, answered);
+		if (answered == null && chatServers.isEmpty()) {
+			throw new IOException("No answer from the name servers");
+		}
+		return chatServers;
 	}
 
 	/**
-	 * Sends a UDP package requesting a chat server list in a UDP package
-	 * addressed to the name server.
-	 * @throws Exception
+	 * Sends a server list request to a name server and schedules the next
+	 * retransmission, waiting twice as long each time.
+	 * @param request the request.
+	 * @param now the current time in milliseconds.
+	 * @throws IOException if the request could not be sent.
 	 */
-	private void requestServerList() throws Exception {
-		DatagramPacket packet = new DatagramPacket(serverRequest, serverRequest.
-				length, address, port);
-		socket.send(packet);
+	private void send(Request request, long now) throws IOException {
+		channel.send(ByteBuffer.wrap(serverRequest), request.address);
+		request.nextSend = now + request.retransmitTime;
+		request.retransmitTime *= 2;
 	}
 
 	/**
-	 * Receives a UDP package containing a chat server list, or a part of a
-	 * chat server list.
-	 * @return the contained chat server list PDU.
-	 * @throws Exception if the UDP package could not be received.
+	 * Receives and parses every datagram waiting in the channel.
+	 * @param requests the requests by name server address.
+	 * @return a request that has been answered in full, or null if none
+	 * has.
+	 * @throws IOException if the channel fails.
 	 */
-	private PDU receivePDU() throws Exception {
-		byte[] data = new byte[UDP_MAX_SIZE];
-		DatagramPacket packet = new DatagramPacket(data, data.length);
-		socket.receive(packet);
+	private Request receiveAll(HashMap<SocketAddress, Request> requests)
+			throws IOException {
+		Request answered = null;
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress source = channel.receive(receiveBuffer);
+			if (source == null) {
+				break;
+			}
+
+			/*Datagrams from anyone else than the name servers asked are
+			 * ignored, as are the ones from servers that are done.*/
+			Request request = requests.get(source);
+			if (request == null || request.serverList.isComplete()) {
+				continue;
+			}
+			receiveBuffer.flip();
+			long now = System.currentTimeMillis();
+
+			/*While the datagrams of a list keep coming, the request isn't
+			 * sent again. Once they stop, the missing ones are asked for.*/
+			if (request.serverList.add(new PDU(receiveBuffer), now)) {
+				request.nextSend = now + FRAGMENT_TIMEOUT;
+			}
+			if (request.serverList.isComplete() && answered == null) {
+				answered = request;
+			}
+		}
+		return answered;
+	}
 
-		return new PDU(packet.getData(), packet.getLength());
+	/**
+	 * Throws away any datagrams waiting in the channel.
+	 * @throws IOException if the channel fails.
+	 */
+	private void discardReceived() throws IOException {
+		do {
+			receiveBuffer.clear();
+		} while (channel.receive(receiveBuffer) != null);
 	}
 
 	/**
-	 * Constructs a server list from one or multiple PDU's and returns it.
-	 * @param pdu a PDU containing a chat server list or a part of one.
-	 * @return the list of chat servesr.
+	 * Merges the answers of the name servers, starting with the complete
+	 * one, leaving out servers listed more than once.
+	 * @param requests the requests by name server address.
+	 * @param answered the request answered in full, or null if none was.
+	 * @return the list of chat servers.
 	 */
-	private ArrayList<ChatServer> createServerList(PDU pdu) {
+	private ArrayList<ChatServer> mergeAnswers(HashMap<SocketAddress,
+			Request> requests, Request answered) {
 		ArrayList<ChatServer> chatServers = new ArrayList<ChatServer>();
-		ArrayList<Integer> receivedSequences = new ArrayList<Integer>();
-
-		/*Read the sequence number of the received PDU and add it to a list.*/
-		int sequenceNumber = pdu.getByte(1);
-		receivedSequences.add(new Integer(sequenceNumber));
-		int noOfServers = pdu.getShort(2);
-		int offset = 4;
-
-		for (int i = 0; i < noOfServers; i++) {
-
-			/*If the end of the current PDU has been reached, attempt to
-			 * recive another UDP package.*/
-			if (offset > pdu.length()) {
-				try {
-					pdu = receivePDU();
-					sequenceNumber = pdu.getByte(2);
-
-					/*If the newly received PDU has a sequence number that
-					 * has been previously parsed, dismiss it and be
-					 * done with it.*/
-					if (receivedSequences.contains(sequenceNumber)) {
-						break;
-					}
-					offset = 0;
-				} catch (Exception e) {
-
-					/*If another UDP package couldn't be received, be done
-					 * with it.*/
-					break;
-				}
+		HashSet<String> seen = new HashSet<String>();
+		if (answered != null) {
+			addNew(answered.serverList.getServerList(), chatServers, seen);
+		}
+		for (InetSocketAddress address : nameServers) {
+			Request request = requests.get(address);
+			if (request != answered) {
+				addNew(request.serverList.getServerList(), chatServers,
+						seen);
 			}
+		}
+		return chatServers;
+	}
 
-			/*Extract the information, create a chat server object from it
-			 * and insert it into a list.*/
-			byte[] address = pdu.getSubrange(offset, 4);
-			int port = pdu.getShort(offset+4);
-			int noOfClients = pdu.getByte(offset+6);
-			int nameLength = pdu.getByte(offset+7);
-			String serverName = getServerName(pdu, offset+8, nameLength);
-			serverName += ", " + noOfClients + " connected.";
-			chatServers.add(new ChatServer(address, port, serverName));
-			offset += 8 + nameLength;
-			if (nameLength % 4 != 0) {
-				offset += 4 - (nameLength % 4);
+	/**
+	 * Adds the chat servers not seen before to a list.
+	 * @param from the chat servers to be added.
+	 * @param to the list to add them to.
+	 * @param seen the addresses and ports of the servers in the list.
+	 */
+	private void addNew(ArrayList<ChatServer> from, ArrayList<ChatServer> to,
+			HashSet<String> seen) {
+		for (ChatServer chatServer : from) {
+			if (seen.add(Arrays.toString(chatServer.getAddress()) + ":" +
+					chatServer.getPort())) {
+				to.add(chatServer);
 			}
 		}
-
-		return chatServers;
 	}
 
 	/**
-	 * Extracts the server name from a PDU given an index and the length of
-	 * the server name.
-	 * @param pdu the PDU containing the server name.
-	 * @param startIndex the byte index in the PDU where the name starts.
-	 * @param nameLength the length of the name.
-	 * @return the server name.
+	 * Parses a name server entry of the form hostname[:port].
+	 * @param entry the entry.
+	 * @param defaultPort the port used if the entry has none.
+	 * @return the address, unresolved if the hostname couldn't be found,
+	 * or null if the entry is empty.
+	 * @throws IllegalArgumentException if the port isn't valid.
 	 */
-	private String getServerName(PDU pdu, int startIndex, int nameLength) {
-		String serverName = "";
+	private static InetSocketAddress parseAddress(String entry,
+			int defaultPort) {
+		if (entry.length() == 0) {
+			return null;
+		}
+		String hostname = entry;
+		int port = defaultPort;
 
-		for (int i = startIndex; i < startIndex + nameLength; i++) {
-			if (pdu.getByte(i) == 0) {
-				break;
-			} else {
-				serverName += new String(pdu.getSubrange(i, 1),
-						StandardCharsets.UTF_8);
-			}
+		/*Only a single colon separates a port, more make an IPv6 address.*/
+		int colon = entry.indexOf(':');
+		if (colon != -1 && colon == entry.lastIndexOf(':')) {
+			hostname = entry.substring(0, colon);
+			port = Integer.parseInt(entry.substring(colon + 1).trim());
 		}
 
-		return serverName;
+		try {
+			return new InetSocketAddress(InetAddress.getByName(hostname),
+					port);
+		} catch (IOException e) {
+			return InetSocketAddress.createUnresolved(hostname, port);
+		}
 	}
 }
@@ -0,0 +1,79 @@
+package controller;
+
+import model.PDU;
+
+/**
+ * Describes one kind of chat server PDU: how long its header is, how long
+ * the whole PDU is, how it's decoded and what the client does with it.
+ *
+ * Codecs are registered by op code in a CodecRegistry. Supporting a new
+ * op code means registering one more codec; neither the I/O code nor the
+ * Executor has to change.
+ * @author c12mkn
+ *
+ */
+public abstract class PDUCodec {
+	private int opCode;
+	private int headerLength;
+
+	/**
+	 * Constructs a PDUCodec.
+	 * @param opCode the op code handled by the codec.
+	 * @param headerLength the length of the fixed header, including the op
+	 * code.
+	 */
+	protected PDUCodec(int opCode, int headerLength) {
+		this.opCode = opCode;
+		this.headerLength = headerLength;
+	}
+
+	/**
+	 * Returns the op code handled by the codec.
+	 * @return the op code.
+	 */
+	public int getOpCode() {
+		return opCode;
+	}
+
+	/**
+	 * Returns the length of the fixed header, including the op code.
+	 * @return the header length in bytes.
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	/**
+	 * Computes the total length of a PDU from its complete header.
+	 * @param header an array starting with the header.
+	 * @return the length of the PDU in bytes.
+	 */
+	public abstract int getLength(byte[] header);
+
+	/**
+	 * Tells whether the checksum of the PDU should be verified while it's
+	 * received. PDU's that don't check out are dropped.
+	 * @return true if the PDU carries a checksum, else false.
+	 */
+	public boolean isChecked() {
+		return false;
+	}
+
+	/**
+	 * Turns a completely received PDU into the object handed to handle().
+	 * The default keeps the received bytes as they are.
+	 * @param pdu the received PDU.
+	 * @return the decoded PDU.
+	 */
+	public PDU decode(PDU pdu) {
+		return pdu;
+	}
+
+	/**
+	 * Takes the client's action on a received PDU. Does nothing by default.
+	 * @param executor the Executor of the client.
+	 * @param pdu the decoded PDU.
+	 */
+	public void handle(Executor executor, PDU pdu) {
+	}
+}
@@ -0,0 +1,55 @@
+package controller;
+
+import model.PDU;
+
+/**
+ * An event telling that a PDU has been received from a chat server.
+ * @author c12mkn
+ *
+ */
+public class PDUEvent {
+
+	/*Counts the references of the PDU of an event for an EventBus.*/
+	public static final EventBus.Sharing<PDUEvent> SHARING =
+			new EventBus.Sharing<PDUEvent>() {
+		@Override
+		public void retain(PDUEvent event) {
+			event.pdu.retain();
+		}
+
+		@Override
+		public void release(PDUEvent event) {
+			event.pdu.release();
+		}
+	};
+
+	private ChatServerConnection connection;
+	private PDU pdu;
+
+	/**
+	 * Constructs a PDUEvent.
+	 * @param connection the connection the PDU was received from.
+	 * @param pdu the received PDU.
+	 */
+	public PDUEvent(ChatServerConnection connection, PDU pdu) {
+		this.connection = connection;
+		this.pdu = pdu;
+	}
+
+	/**
+	 * Returns the connection the PDU was received from.
+	 * @return a chat server connection.
+	 */
+	public ChatServerConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Returns the received PDU. It's only valid until the subscriber
+	 * returns.
+	 * @return a PDU.
+	 */
+	public PDU getPDU() {
+		return pdu;
+	}
+}
@@ -1,23 +1,28 @@
 package controller;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import model.CompressAlgorithms;
 import model.CryptAlgorithms;
 import model.OpCodes;
 import model.PDU;
 
 /**
- * A class used to construct different PDU's.
+ * A class used to construct different PDU's. The PDU's are leased from the
+ * default BufferPool and are released by whoever sends them.
  * @author c12mkn
  *
  */
 public final class PDUFactory {
+	private static final BufferPool pool = BufferPool.getDefault();
 
 	/**
 	 * Returns a server list request PDU.
 	 * @return a server list request PDU.
 	 */
 	static public PDU makeServerListRequest() {
-		PDU pdu = new PDU(4);
+		PDU pdu = pool.leasePDU(4);
 		pdu.setByte(0, (byte) OpCodes.GETLIST);
 		pdu.setByte(1, (byte) 0);
 		pdu.setByte(2, (byte) 0);
@@ -32,7 +37,7 @@ public final class PDUFactory {
 	 * @return a join request PDU.
 	 */
 	static public PDU makeJoinRequest(byte[] nickname) {
-		PDU pdu = new PDU(4 + Client.getPaddedLength(nickname.length));
+		PDU pdu = pool.leasePDU(4 + Client.getPaddedLength(nickname.length));
 		pdu.setByte(0, (byte) OpCodes.JOIN);
 		pdu.setByte(1, (byte) nickname.length);
 		pdu.setSubrange(4, nickname);
@@ -47,14 +52,35 @@ public final class PDUFactory {
 	 * @return a message PDU.
 	 */
 	static public PDU makeMessage(int messageType, byte[] message) {
-		PDU pdu = new PDU(12 + Client.getPaddedLength(message.length));
+		PDU pdu = pool.leasePDU(12 + Client.getPaddedLength(message.length));
 
 		pdu.setByte(0, (byte) OpCodes.MESSAGE);
 		pdu.setByte(1, (byte) messageType);
 		pdu.setShort(4, (short) message.length);
 		pdu.setSubrange(12, message);
 
-		pdu.setByte(3, Checksum.calc(pdu.getBytes(), pdu.length()));
+		pdu.setByte(3, Checksum.calc(pdu.asByteBuffer(), 0, pdu.length()));
+
+		return pdu;
+	}
+
+	/**
+	 * Returns a message PDU carrying another PDU, such as a compressed or
+	 * encrypted message PDU. The inner PDU is copied once, straight into the
+	 * new PDU, and is not released.
+	 * @param messageType the type of message to be sent.
+	 * @param message the inner PDU.
+	 * @return a message PDU.
+	 */
+	static public PDU makeMessage(int messageType, PDU message) {
+		PDU pdu = pool.leasePDU(12 + Client.getPaddedLength(message.length()));
+
+		pdu.setByte(0, (byte) OpCodes.MESSAGE);
+		pdu.setByte(1, (byte) messageType);
+		pdu.setShort(4, (short) message.length());
+		pdu.setSubrange(12, message);
+
+		pdu.setByte(3, Checksum.calc(pdu.asByteBuffer(), 0, pdu.length()));
 
 		return pdu;
 	}
@@ -68,21 +94,55 @@ public final class PDUFactory {
 	 */
 	static public PDU makeCompressedMessage(int algorithm, byte[] message)
 			throws Exception {
-		if (algorithm == CompressAlgorithms.GZIP) {
-			byte[] compressedMessage = GZIP.compress(message);
-
-			PDU pdu = new PDU(8 + Client.getPaddedLength(compressedMessage.
-					length));
-			pdu.setByte(0, (byte) algorithm);
-			pdu.setShort(2, (short) compressedMessage.length);
-			pdu.setShort(4, (short) message.length);
-			pdu.setSubrange(8, compressedMessage);
-			pdu.setByte(1, Checksum.calc(pdu.getBytes(), pdu.length()));
+		return makeCompressedMessage(algorithm, message, GZIP.DEFAULT_LEVEL);
+	}
 
-			return pdu;
+	/**
+	 * Returns a compressed message PDU, compressed at a given level.
+	 * @param algorithm the algorithm to be used.
+	 * @param message the message in bytes.
+	 * @param level a compression level from 0 to 9, or GZIP.DEFAULT_LEVEL.
+	 * Ignored by algorithms without levels.
+	 * @return a message PDU.
+	 * @throws Exception if the message couldn't be compressed.
+	 */
+	static public PDU makeCompressedMessage(int algorithm, byte[] message,
+			int level) throws Exception {
+		int maxLength;
+		if (algorithm == CompressAlgorithms.GZIP) {
+			maxLength = GZIP.getMaxCompressedLength(message.length);
+		} else if (algorithm == CompressAlgorithms.LZ4) {
+			maxLength = LZ4.getMaxCompressedLength(message.length);
 		} else {
 			return null;
 		}
+
+		/*Compress straight into the array of the new PDU.*/
+		byte[] array = pool.lease(8 + Client.getPaddedLength(maxLength));
+		int compressedLength;
+		try {
+			if (algorithm == CompressAlgorithms.GZIP) {
+				compressedLength = GZIP.compress(message, 0, message.length,
+						level, array, 8);
+			} else {
+				compressedLength = LZ4.compress(message, 0, message.length,
+						array, 8);
+			}
+		} catch (Exception e) {
+			pool.release(array);
+			throw e;
+		}
+		int length = 8 + Client.getPaddedLength(compressedLength);
+		Arrays.fill(array, 0, 8, (byte) 0);
+		Arrays.fill(array, 8 + compressedLength, length, (byte) 0);
+
+		PDU pdu = new PDU(array, length, pool);
+		pdu.setByte(0, (byte) algorithm);
+		pdu.setShort(2, (short) compressedLength);
+		pdu.setShort(4, (short) message.length);
+		pdu.setByte(1, Checksum.calc(pdu.asByteBuffer(), 0, pdu.length()));
+
+		return pdu;
 	}
 
 	/**
@@ -95,29 +155,63 @@ public final class PDUFactory {
 	static public PDU makeEncryptedMessage(int algorithm, byte[] message,
 			String cryptKey) {
 		if (algorithm == CryptAlgorithms.STANDARD) {
-			PDU pdu = new PDU(8);
-			pdu.setByte(0, (byte) algorithm);
-			pdu.setShort(4, (short) message.length);
-			Crypt.encrypt(message, message.length, cryptKey.getBytes(),
-					cryptKey.length());
-			pdu.setShort(2, (short) message.length);
-			pdu.extendTo(8 + Client.getPaddedLength(message.length));
+			PDU pdu = pool.leasePDU(8 + Client.getPaddedLength(message.length));
 			pdu.setSubrange(8, message);
-			pdu.setByte(1, Checksum.calc(pdu.getBytes(), pdu.length()));
+			return encrypt(pdu, algorithm, message.length, cryptKey);
+		} else {
+			return null;
+		}
+	}
 
-			return pdu;
+	/**
+	 * Returns an encrypted message PDU carrying another PDU, such as a
+	 * compressed message PDU. The inner PDU is not released.
+	 * @param algorithm the encryption algorithm to be used.
+	 * @param message the inner PDU.
+	 * @param cryptKey the encryption key to be used.
+	 * @return a message PDU.
+	 */
+	static public PDU makeEncryptedMessage(int algorithm, PDU message,
+			String cryptKey) {
+		if (algorithm == CryptAlgorithms.STANDARD) {
+			PDU pdu = pool.leasePDU(8 + Client.getPaddedLength(message.
+					length()));
+			pdu.setSubrange(8, message);
+			return encrypt(pdu, algorithm, message.length(), cryptKey);
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Encrypts the message already copied into an encrypted message PDU and
+	 * fills in its header.
+	 * @param pdu an encrypted message PDU holding the plain message.
+	 * @param algorithm the encryption algorithm to be used.
+	 * @param length the length of the message.
+	 * @param cryptKey the encryption key to be used.
+	 * @return the PDU.
+	 */
+	static private PDU encrypt(PDU pdu, int algorithm, int length,
+			String cryptKey) {
+		pdu.setByte(0, (byte) algorithm);
+		pdu.setShort(4, (short) length);
+		pdu.setShort(2, (short) length);
+
+		ByteBuffer buffer = pdu.asByteBuffer();
+		CryptEngine.forKey(cryptKey).apply(buffer, 8, length);
+		pdu.setByte(1, Checksum.calc(buffer, 0, pdu.length()));
+
+		return pdu;
+	}
+
 	/**
 	 * Returns a change nickname PDU.
 	 * @param nickname the nickname to change to in bytes.
 	 * @return a change nickname PDU.
 	 */
 	static public PDU makeChangeNicknameMessage(String nickname) {
-		PDU pdu = new PDU(4 + Client.getPaddedLength(nickname.length()));
+		PDU pdu = pool.leasePDU(4 + Client.getPaddedLength(nickname.length()));
 		pdu.setByte(0, (byte) OpCodes.CHNICK);
 		pdu.setByte(1, (byte) nickname.length());
 		pdu.setSubrange(4, nickname.getBytes());
@@ -130,7 +224,7 @@ public final class PDUFactory {
 	 * @return a quit PDU.
 	 */
 	public static PDU makeQuit() {
-		PDU pdu = new PDU(4);
+		PDU pdu = pool.leasePDU(4);
 		pdu.setByte(0, (byte) OpCodes.QUIT);
 
 		return pdu;
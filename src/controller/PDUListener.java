@@ -0,0 +1,25 @@
+package controller;
+
+import model.PDU;
+
+/**
+ * An interface for objects receiving the PDUs of a chat server connection
+ * as they arrive, instead of blocking in receivePDU().
+ * @author c12mkn
+ *
+ */
+public interface PDUListener {
+
+	/**
+	 * Called when a complete PDU has been received.
+	 * @param connection the connection the PDU was received on.
+	 * @param pdu the received PDU.
+	 */
+	void pduReceived(ChatServerConnection connection, PDU pdu);
+
+	/**
+	 * Called once when the connection has been closed.
+	 * @param connection the closed connection.
+	 */
+	void connectionClosed(ChatServerConnection connection);
+}
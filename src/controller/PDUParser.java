@@ -1,135 +1,182 @@
 package controller;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
-import model.OpCodes;
 import model.PDU;
 
-
+/**
+ * An incremental parser turning the byte stream of a chat server connection
+ * into PDU's.
+ *
+ * Bytes may be fed in chunks of any size. The parser remembers how far it
+ * got into the current PDU, sizes the PDU from its header as soon as the
+ * header is complete and copies the body straight into it. The checksum of
+ * a checked PDU is summed up as its bytes arrive, and PDU's that don't
+ * check out are dropped. Parsed PDU's are leased from a BufferPool and
+ * should be released when no longer needed.
+ *
+ * What the header of each op code looks like is told by the PDUCodec
+ * registered for it in a CodecRegistry.
+ * @author c12mkn
+ *
+ */
 public final class PDUParser {
+	private static final int MAX_HEADER_LENGTH = 12;
+
+	/*The states of the parser.*/
+	private static final int OPCODE = 0;
+	private static final int HEADER = 1;
+	private static final int BODY = 2;
+
+	private BufferPool pool;
+	private CodecRegistry registry;
+	private PDUCodec codec;
+	private int state;
+	private byte[] header;
+	private int headerLength;
+	private byte[] array;
+	private int length;
+	private int received;
+	private boolean checked;
+	private int checksum;
+
+	/**
+	 * Constructs a PDUParser leasing its PDU's from the default pool and
+	 * using the default codecs.
+	 */
+	public PDUParser() {
+		this(BufferPool.getDefault(), CodecRegistry.getDefault());
+	}
+
+	/**
+	 * Constructs a PDUParser.
+	 * @param pool the pool to lease PDU's from.
+	 * @param registry the codecs of the op codes that may be received.
+	 */
+	public PDUParser(BufferPool pool, CodecRegistry registry) {
+		this.pool = pool;
+		this.registry = registry;
+		header = new byte[MAX_HEADER_LENGTH];
+		state = OPCODE;
+	}
 
 	/**
-	 * Parses an incoming message PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed message PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Consumes bytes from a chunk until a PDU is complete, or the chunk is
+	 * used up. Call again with the same chunk until it returns null to get
+	 * every PDU the chunk completes.
+	 * @param chunk a buffer holding received bytes between its position and
+	 * limit. Its position is moved past the consumed bytes.
+	 * @return a complete PDU, or null if more bytes are needed.
+	 * @throws IOException if the stream contains an unknown op code, after
+	 * which the stream can't be parsed any further.
 	 */
-	public static PDU parseMessage(InputStream inputStream) throws IOException {
-		PDU pdu = new PDU(12);
-		pdu.setByte(0, (byte) OpCodes.MESSAGE);
-		byte[] buffer = new byte[11];
-		inputStream.read(buffer, 0, 11);
-		pdu.setSubrange(1, buffer);
-
-		int nickLength = pdu.getByte(2);
-		int messageLength = pdu.getShort(4);
-		int paddedLength = Client.getPaddedLength(nickLength,
-				messageLength);
-
-		pdu.extendTo(12+paddedLength);
-		buffer = new byte[paddedLength];
-		inputStream.read(buffer, 0, paddedLength);
-		pdu.setSubrange(12, buffer);
-
-		return pdu;
+	public PDU parse(ByteBuffer chunk) throws IOException {
+		while (chunk.hasRemaining()) {
+			switch (state) {
+				case OPCODE:
+					startPDU(chunk.get() & 0xFF);
+					break;
+				case HEADER:
+					received += read(chunk, header, received, headerLength -
+							received);
+					if (received == headerLength) {
+						startBody();
+					}
+					break;
+				case BODY:
+					received += read(chunk, array, received, length -
+							received);
+					break;
+			}
+
+			if (state == BODY && received == length) {
+				PDU pdu = finishPDU();
+				if (pdu != null) {
+					return pdu;
+				}
+			}
+		}
+
+		return null;
 	}
 
 	/**
-	 * Parses an incoming nicknames PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed nicknames PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Gives back the PDU being parsed, if any. Used when the connection is
+	 * closed in the middle of a PDU.
 	 */
-	public static PDU parseNicknames(InputStream inputStream)
-			throws IOException {
-		PDU pdu = new PDU(4);
-		pdu.setByte(0, (byte) OpCodes.NICKS);
-		byte[] buffer = new byte[3];
-		inputStream.read(buffer, 0, 3);
-		pdu.setSubrange(1, buffer);
-
-		int paddedNamesLength = Client.getPaddedLength(pdu.getShort(2));
-		pdu.extendTo(4 + paddedNamesLength);
-		buffer = new byte[paddedNamesLength];
-		inputStream.read(buffer, 0, paddedNamesLength);
-		pdu.setSubrange(4, buffer);
-		return pdu;
+	public void reset() {
+		if (array != null) {
+			pool.release(array);
+			array = null;
+		}
+		state = OPCODE;
 	}
 
 	/**
-	 * Parses an incoming user join PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed user join PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Starts parsing a new PDU.
+	 * @param opCode the op code of the PDU.
+	 * @throws IOException if the op code is unknown.
 	 */
-	public static PDU parseUserJoin(InputStream inputStream)
-			throws IOException {
-		PDU pdu = new PDU(8);
-		pdu.setByte(0, (byte) OpCodes.UJOIN);
-		byte[] buffer = new byte[7];
-		inputStream.read(buffer, 0, 7);
-		pdu.setSubrange(1, buffer);
-
-		int paddedNameLength = Client.getPaddedLength(pdu.getByte(1));
-		pdu.extendTo(8 + paddedNameLength);
-		buffer = new byte[paddedNameLength];
-		inputStream.read(buffer, 0, paddedNameLength);
-		pdu.setSubrange(8, buffer);
-
-		return pdu;
+	private void startPDU(int opCode) throws IOException {
+		codec = registry.get(opCode);
+		if (codec == null) {
+			throw new IOException("Unknown op code " + opCode);
+		}
+		headerLength = codec.getHeaderLength();
+		if (headerLength > header.length) {
+			header = new byte[headerLength];
+		}
+		header[0] = (byte) opCode;
+		received = 1;
+		checked = codec.isChecked();
+		checksum = checked ? Checksum.update(0, header, 0, 1) : 0;
+		state = HEADER;
 	}
 
 	/**
-	 * Parses an incoming user leave PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed user leave PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Leases an array of the exact length given by the complete header and
+	 * moves the header into it.
 	 */
-	public static PDU parseUserLeave(InputStream inputStream)
-			throws IOException {
-		PDU pdu = parseUserJoin(inputStream);
-		pdu.setByte(0, (byte) OpCodes.ULEAVE);
-		return pdu;
+	private void startBody() {
+		length = codec.getLength(header);
+		array = pool.lease(length);
+		System.arraycopy(header, 0, array, 0, headerLength);
+		state = BODY;
 	}
 
 	/**
-	 * Parses an incoming change nickname PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed change nickname PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Hands out the completed PDU and gets ready for the next one.
+	 * @return the PDU, or null if it was dropped for a bad checksum.
 	 */
-	public static PDU parseChangeNickname(InputStream inputStream)
-			throws IOException {
-		PDU pdu = new PDU(8);
-		pdu.setByte(0, (byte) OpCodes.UCNICK);
-		byte[] buffer = new byte[7];
-		inputStream.read(buffer, 0, 7);
-		pdu.setSubrange(1, buffer);
-
-		int nameLength1 = pdu.getByte(1);
-		int nameLength2 = pdu.getByte(2);
-		int totalPaddedLength = Client.getPaddedLength(nameLength1,
-				nameLength2);
-		pdu.extendTo(8 + totalPaddedLength);
-		buffer = new byte[totalPaddedLength];
-		inputStream.read(buffer, 0, totalPaddedLength);
-		pdu.setSubrange(8, buffer);
-
-		return pdu;
+	private PDU finishPDU() {
+		PDU pdu = new PDU(array, length, pool);
+		array = null;
+		state = OPCODE;
+
+		if (checked && Checksum.finish(checksum) != 0) {
+			pdu.release();
+			return null;
+		}
+		return codec.decode(pdu);
 	}
 
 	/**
-	 * Parses an incoming quit PDU.
-	 * @param inputStream an input stream from the socket receiving the PDU.
-	 * @return a parsed quit PDU.
-	 * @throws IOException if an I/O exception occurs during the reading.
+	 * Copies up to the given number of bytes from a chunk, adding them to
+	 * the checksum if the current PDU is checked.
+	 * @param chunk the chunk to copy from.
+	 * @param destination the array to copy to.
+	 * @param offset the index in the array to copy to.
+	 * @param wanted the number of bytes still wanted.
+	 * @return the number of bytes copied.
 	 */
-	public static PDU parseQuit(InputStream inputStream) throws IOException {
-		PDU pdu = new PDU(4);
-		byte[] buffer = new byte[3];
-		inputStream.read(buffer, 0, 3);
-		pdu.setSubrange(1, buffer);
-		return pdu;
+	private int read(ByteBuffer chunk, byte[] destination, int offset,
+			int wanted) {
+		int count = Math.min(wanted, chunk.remaining());
+		chunk.get(destination, offset, count);
+		if (checked) {
+			checksum = Checksum.update(checksum, destination, offset, count);
+		}
+		return count;
 	}
 }
@@ -0,0 +1,223 @@
+package controller;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import model.ChatServer;
+
+/**
+ * Reconnects sessions whose connections are lost without the user leaving,
+ * because they dropped or their servers quit.
+ *
+ * The first attempt is made shortly after the loss, and every failed one
+ * doubles the wait, up to MAX_DELAY. Each wait is drawn at random from its
+ * upper half, so clients that lost the same server don't all come back at
+ * the same moment. On top of that, attempts of all sessions are spread at
+ * least MIN_INTERVAL apart. A reconnected session joins with its current
+ * nickname. Its roster and messages are kept through the outage, so the
+ * roster sent on joining only changes what changed, and the messages stay
+ * scrolled where they were. The backoff starts over once a connection has
+ * lasted STABLE_TIME.
+ * @author c12mkn
+ *
+ */
+public class ReconnectSupervisor {
+	private static final long BASE_DELAY = 500;
+	private static final long MAX_DELAY = 30000;
+	private static final long MIN_INTERVAL = 250;
+	private static final long STABLE_TIME = 30000;
+	private static final int EVENT_CAPACITY = 4;
+
+	private ConnectionPool connectionPool;
+	private TaskExecutor executor;
+
+	/*Guarded by the supervisor itself.*/
+	private HashMap<Session, Attempts> attempts;
+	private long nextSlot;
+	private long reconnects;
+
+	/**
+	 * The reconnect attempts of a session.
+	 * @author c12mkn
+	 *
+	 */
+	private static class Attempts {
+		private int failures;
+		private long connected;
+		private boolean pending;
+	}
+
+	/**
+	 * Constructs a ReconnectSupervisor.
+	 * @param connectionPool the pool to take new connections from.
+	 */
+	public ReconnectSupervisor(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+		executor = TaskExecutor.getDefault();
+		attempts = new HashMap<Session, Attempts>();
+	}
+
+	/**
+	 * Starts watching a session for lost connections.
+	 * @param session the session.
+	 */
+	public void watch(final Session session) {
+		session.getConnectionHandler().getLostBus().subscribe(
+				new EventBus.Subscriber<ChatServerConnection>() {
+			@Override
+			public void onEvent(ChatServerConnection lost) {
+				connectionLost(session);
+			}
+		}, executor.named("Reconnects"), EVENT_CAPACITY, EventBus.BLOCK);
+	}
+
+	/**
+	 * Forgets the attempts of a session the user has left.
+	 * @param session the session.
+	 */
+	public synchronized void forget(Session session) {
+		attempts.remove(session);
+	}
+
+	/**
+	 * Returns the number of successful reconnects.
+	 * @return the number of reconnects.
+	 */
+	public synchronized long getReconnects() {
+		return reconnects;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReconnectSupervisor[sessions=" + attempts.size() +
+				", reconnects=" + reconnects + "]";
+	}
+
+	/**
+	 * Schedules the first reconnect attempt of a session that lost its
+	 * connection.
+	 * @param session the session.
+	 */
+	private void connectionLost(Session session) {
+		ChatServer chatServer = session.getChatServer();
+		if (session.isLeft() || chatServer == null) {
+			return;
+		}
+		synchronized (this) {
+			Attempts sessionAttempts = attempts.get(session);
+			if (sessionAttempts == null) {
+				sessionAttempts = new Attempts();
+				attempts.put(session, sessionAttempts);
+			}
+
+			/*A connection that lasted was no part of a failing streak.*/
+			if (System.currentTimeMillis() - sessionAttempts.connected >=
+					STABLE_TIME) {
+				sessionAttempts.failures = 0;
+			}
+		}
+		schedule(session, chatServer);
+	}
+
+	/**
+	 * Schedules a reconnect attempt, after a wait depending on the number of
+	 * failed attempts so far.
+	 * @param session the session.
+	 * @param chatServer the chat server to reconnect to.
+	 */
+	private void schedule(final Session session, final ChatServer chatServer) {
+		long delay;
+		synchronized (this) {
+			Attempts sessionAttempts = attempts.get(session);
+			if (sessionAttempts == null || sessionAttempts.pending) {
+				return;
+			}
+			sessionAttempts.pending = true;
+
+			long backoff = Math.min(MAX_DELAY, BASE_DELAY <<
+					Math.min(sessionAttempts.failures, 16));
+			long now = System.currentTimeMillis();
+			long start = now + backoff / 2 + ThreadLocalRandom.current().
+					nextLong(backoff / 2 + 1);
+			start = Math.max(start, nextSlot);
+			nextSlot = start + MIN_INTERVAL;
+			delay = start - now;
+		}
+
+		session.getExecutor().appendNotice("Connection to " + Session.
+				getTitle(chatServer) + " lost, reconnecting in " +
+				(delay + 999) / 1000 + " s.");
+		try {
+			SelectorTransport.getDefault().schedule(new Runnable() {
+				@Override
+				public void run() {
+					executor.submit("Reconnect to " + Session.getTitle(
+							chatServer), new Runnable() {
+						@Override
+						public void run() {
+							attempt(session, chatServer);
+						}
+					});
+				}
+			}, TimeUnit.MILLISECONDS.toNanos(delay));
+		} catch (IOException e) {
+			synchronized (this) {
+				attempts.remove(session);
+			}
+		}
+	}
+
+	/**
+	 * Reconnects a session, unless it has been left or has been given
+	 * another connection meanwhile. A failed attempt schedules the next one.
+	 * @param session the session.
+	 * @param chatServer the chat server to reconnect to.
+	 */
+	private void attempt(Session session, ChatServer chatServer) {
+		ConnectionHandler connectionHandler = session.getConnectionHandler();
+		if (session.isLeft() || connectionHandler.hasConnection() ||
+				session.getChatServer() != chatServer) {
+			synchronized (this) {
+				attempts.remove(session);
+			}
+			return;
+		}
+
+		ChatServerConnection connection = null;
+		try {
+			connection = connectionPool.take(chatServer);
+		} catch (Exception e) {
+
+			/*Still down, try again later.*/
+		}
+
+		synchronized (this) {
+			Attempts sessionAttempts = attempts.get(session);
+			if (sessionAttempts == null) {
+
+				/*Left while connecting.*/
+				if (connection != null) {
+					connection.close();
+				}
+				return;
+			}
+			sessionAttempts.pending = false;
+			if (connection == null) {
+				sessionAttempts.failures++;
+			} else {
+				sessionAttempts.connected = System.currentTimeMillis();
+				reconnects++;
+			}
+		}
+
+		if (connection == null) {
+			schedule(session, chatServer);
+		} else {
+			session.getExecutor().appendNotice("Reconnected to " + Session.
+					getTitle(chatServer) + ".");
+			connectionHandler.getConnectionBus().publish(connection);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport driving any number of non-blocking chat server connections
+ * from a single I/O thread using a Selector.
+ * @author c12mkn
+ *
+ */
+public class SelectorTransport {
+	private static final int READ_BUFFER_SIZE = 64*1024;
+
+	private static SelectorTransport defaultTransport;
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> pendingTasks;
+	private PriorityQueue<ScheduledTask> scheduledTasks;
+	private ByteBuffer readBuffer;
+	private Thread ioThread;
+	private volatile boolean running;
+
+	/**
+	 * Constructs a SelectorTransport and starts its I/O thread.
+	 * @throws IOException if a selector couldn't be opened.
+	 */
+	public SelectorTransport() throws IOException {
+		selector = Selector.open();
+		pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+		scheduledTasks = new PriorityQueue<ScheduledTask>();
+
+		/*Only the I/O thread reads, so one buffer serves all connections.*/
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		running = true;
+		ioThread = new Thread("Selector transport") {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		};
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/**
+	 * Returns the transport shared by the whole client, creating it the
+	 * first time it's asked for.
+	 * @return the shared transport.
+	 * @throws IOException if the transport couldn't be created.
+	 */
+	public static synchronized SelectorTransport getDefault()
+			throws IOException {
+		if (defaultTransport == null) {
+			defaultTransport = new SelectorTransport();
+		}
+		return defaultTransport;
+	}
+
+	/**
+	 * Shuts the shared transport down, if it has been created.
+	 */
+	public static synchronized void shutdownDefault() {
+		if (defaultTransport != null) {
+			defaultTransport.shutdown();
+			defaultTransport = null;
+		}
+	}
+
+	/**
+	 * Registers a connected, non-blocking channel with the transport. Reads
+	 * start as soon as the I/O thread has picked up the registration.
+	 * @param channel the channel of the connection.
+	 * @param connection the connection that will handle its events.
+	 */
+	void register(final SocketChannel channel,
+			final ChatServerConnection connection) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = channel.register(selector,
+							SelectionKey.OP_READ, connection);
+					connection.registered(key);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Asks the I/O thread to start watching a connection for writability.
+	 * @param connection a connection with pending writes.
+	 */
+	void requestWrite(ChatServerConnection connection) {
+		requestWrite(connection, 0);
+	}
+
+	/**
+	 * Asks the I/O thread to start watching a connection for writability
+	 * after a delay, so that more writes can gather in the meantime.
+	 * @param connection a connection with pending writes.
+	 * @param delay the delay in nanoseconds, 0 to start at once.
+	 */
+	void requestWrite(final ChatServerConnection connection, long delay) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = connection.getSelectionKey();
+				try {
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps() |
+								SelectionKey.OP_WRITE);
+					}
+				} catch (CancelledKeyException e) {
+
+					/*Closed by another thread meanwhile.*/
+				}
+			}
+		};
+		if (delay > 0) {
+			schedule(task, delay);
+		} else {
+			execute(task);
+		}
+	}
+
+	/**
+	 * Tells whether the calling thread is the I/O thread.
+	 * @return true if called from the I/O thread.
+	 */
+	boolean isIOThread() {
+		return Thread.currentThread() == ioThread;
+	}
+
+	/**
+	 * Runs a task on the I/O thread.
+	 * @param task a task to be run.
+	 */
+	void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the I/O thread after a delay.
+	 * @param task a task to be run.
+	 * @param delay the delay in nanoseconds.
+	 */
+	void schedule(Runnable task, long delay) {
+		final ScheduledTask scheduledTask = new ScheduledTask(task,
+				System.nanoTime() + delay);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				scheduledTasks.add(scheduledTask);
+			}
+		});
+	}
+
+	/**
+	 * Stops the I/O thread and closes all connections driven by it.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * The loop run by the I/O thread.
+	 */
+	private void selectLoop() {
+		while (running) {
+			try {
+				selector.select(getSelectTimeout());
+			} catch (IOException e) {
+				break;
+			}
+
+			Runnable task;
+			while ((task = pendingTasks.poll()) != null) {
+				runTask(task);
+			}
+			runScheduledTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				handleKey(key);
+			}
+		}
+
+		/*Close whatever is left when the loop ends.*/
+		for (SelectionKey key : selector.keys()) {
+			close((ChatServerConnection) key.attachment());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+
+			/*Nothing more to do with a broken selector.*/
+		}
+	}
+
+	/**
+	 * Returns how long the I/O thread may wait in select() before the first
+	 * scheduled task is due.
+	 * @return the timeout in milliseconds, 0 to wait until woken up.
+	 */
+	private long getSelectTimeout() {
+		ScheduledTask next = scheduledTasks.peek();
+		if (next == null) {
+			return 0;
+		}
+		long nanos = next.deadline - System.nanoTime();
+
+		/*Round up and never return 0, which would mean no timeout.*/
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999));
+	}
+
+	/**
+	 * Runs the scheduled tasks that are due.
+	 */
+	private void runScheduledTasks() {
+		long now = System.nanoTime();
+		ScheduledTask next;
+		while ((next = scheduledTasks.peek()) != null &&
+				next.deadline - now <= 0) {
+			runTask(scheduledTasks.poll().task);
+		}
+	}
+
+	/**
+	 * Dispatches the ready operations of a key to its connection.
+	 * @param key a selected key.
+	 */
+	private void handleKey(SelectionKey key) {
+		ChatServerConnection connection =
+				(ChatServerConnection) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				readBuffer.clear();
+				connection.handleRead(readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				connection.handleWrite();
+			}
+		} catch (IOException e) {
+			close(connection);
+		} catch (CancelledKeyException e) {
+
+			/*Closed by another thread meanwhile.*/
+		} catch (RuntimeException e) {
+
+			/*A broken connection, or a listener of it, must not stop the
+			 * I/O thread of all the others.*/
+			TaskExecutor.reportFailure(e);
+			close(connection);
+		}
+	}
+
+	/**
+	 * Closes a connection on the I/O thread, reporting any failure of its
+	 * listener.
+	 * @param connection the connection.
+	 */
+	private void close(ChatServerConnection connection) {
+		try {
+			connection.close();
+		} catch (RuntimeException e) {
+			TaskExecutor.reportFailure(e);
+		}
+	}
+
+	/**
+	 * Runs a task on the I/O thread, reporting it if it fails instead of
+	 * letting it end the thread.
+	 * @param task the task.
+	 */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			TaskExecutor.reportFailure(e);
+		}
+	}
+
+	/**
+	 * Helper class holding a task and the time it's due.
+	 * @author c12mkn
+	 *
+	 */
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+		private Runnable task;
+		private long deadline;
+
+		public ScheduledTask(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask other) {
+			return Long.signum(deadline - other.deadline);
+		}
+	}
+}
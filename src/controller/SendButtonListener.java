@@ -7,74 +7,65 @@ import java.nio.charset.StandardCharsets;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
-import model.CompressAlgorithms;
-import model.CryptAlgorithms;
-import model.MsgTypes;
 import model.PDU;
 import view.GUI;
 
 /**
  * A listener class defining behavior when the user clicks the send button.
+ * Messages are sent to the chat server of the selected tab.
  * @author c12mkn
  *
  */
 public class SendButtonListener implements ActionListener {
-	private static final int DEFAULT_CRYPTALGORITHM = CryptAlgorithms.STANDARD;
-	private static final int DEFAULT_COMPRESSALGORITHM = CompressAlgorithms.
-			GZIP;
 	private static final String DEFAULT_CRYPTKEY = "foobar";
 
-	private ConnectionHandler connectionHandler;
+	private SessionManager sessionManager;
 	private GUI gui;
 	private String cryptKey;
 	private boolean encrypt;
 	private boolean compress;
+	private CompressionPolicy compressionPolicy;
 
 	/**
 	 * Constructs a SendButtonListener.
-	 * @param connectionHandler a ConnectionHandler object used to send
-	 * messages.
+	 * @param sessionManager the sessions to send messages to.
 	 * @param gui a GUI to fetch the messages from.
 	 */
-	public SendButtonListener(ConnectionHandler connectionHandler, GUI gui) {
+	public SendButtonListener(SessionManager sessionManager, GUI gui) {
 		cryptKey = DEFAULT_CRYPTKEY;
-		this.connectionHandler = connectionHandler;
+		compressionPolicy = new CompressionPolicy();
+		this.sessionManager = sessionManager;
 		this.gui = gui;
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
 
-		/*If the connection handler has no connection, don't send the message.*/
+		/*If the current session has no connection, don't send the
+		 * message.*/
+		Session current = sessionManager.getCurrent();
+		if (current == null) {
+			JOptionPane.showMessageDialog(gui, "No connection available.",
+					"Connection", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		ConnectionHandler connectionHandler = current.getConnectionHandler();
 		if (!connectionHandler.hasConnection()) {
-			gui.appendTextArea("No connection available.");
+			current.getPanel().appendTextArea("No connection available.");
 			return;
 		}
 
 		/*Retrieve the message*/
-		final String message = gui.getMessage();
+		String message = gui.getMessage();
 
 		/*If the message length is 0, don't send it.*/
 		if (message.length() == 0) {
 			return;
 		}
 
-		/*If not, send the message in a new thread to prevent the GUI from
-		 * locking up.*/
-		new Thread() {
-			@Override
-			public void run() {
-				if (compress && encrypt) {
-					sendCompressedAndEncryptedMessage(message);
-				} else if (compress) {
-					sendCompressedMessage(message);
-				} else if (encrypt) {
-					sendEncryptedMessage(message);
-				} else {
-					sendPlainMessage(message);
-				}
-			}
-		}.start();
+		/*If not, send it. Sending only queues the message for the writer of
+		 * the connection, so the GUI doesn't lock up.*/
+		sendMessage(connectionHandler, message);
 	}
 
 	/**
@@ -100,65 +91,37 @@ public class SendButtonListener implements ActionListener {
 	}
 
 	/**
-	 * Compresses and encrypts a message, then sends it.
-	 * @param message a message to be sent.
+	 * Returns the policy deciding how messages are compressed.
+	 * @return the compression policy.
 	 */
-	private void sendCompressedAndEncryptedMessage(String message) {
-		try {
-			PDU pdu = PDUFactory.makeCompressedMessage(
-					DEFAULT_COMPRESSALGORITHM, message.getBytes(
-							StandardCharsets.UTF_8));
-			pdu = PDUFactory.makeEncryptedMessage(DEFAULT_CRYPTALGORITHM,
-					pdu.getBytes(), cryptKey);
-			pdu = PDUFactory.makeMessage(MsgTypes.COMPCRYPT, pdu.getBytes());
-			connectionHandler.sendPDU(pdu);
-		} catch (Exception e) {
-			
-			/*If the message couldn't be compressed, display an error message.*/
-			displayErrorMessageWhenPossible("Message not sent, message could " +
-					"not be compressed.", "Message compression");
-		}
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
 	}
 
 	/**
-	 * Compresses and sends a message.
+	 * Sends a message, compressed if the compression policy finds that
+	 * worthwhile and encrypted if encryption is turned on.
+	 * @param connectionHandler the ConnectionHandler to send it with.
 	 * @param message a message to be sent.
 	 */
-	private void sendCompressedMessage(String message) {
+	private void sendMessage(ConnectionHandler connectionHandler,
+			String message) {
 		try {
-			PDU pdu = PDUFactory.makeCompressedMessage(
-					DEFAULT_COMPRESSALGORITHM, message.getBytes(
-							StandardCharsets.UTF_8));
-			pdu = PDUFactory.makeMessage(MsgTypes.COMP, pdu.getBytes());
-			connectionHandler.sendPDU(pdu);
+			PDU pdu = compressionPolicy.makeMessage(message.getBytes(
+					StandardCharsets.UTF_8), compress, encrypt ? cryptKey :
+						null);
+			if (!connectionHandler.sendPDU(pdu)) {
+				displayErrorMessageWhenPossible("Message not sent, too many " +
+						"messages are waiting to be sent.", "Message queue");
+			}
 		} catch (Exception e) {
+
 			/*If the message couldn't be compressed, display an error message.*/
 			displayErrorMessageWhenPossible("Message not sent, message could " +
 					"not be compressed.", "Message compression");
 		}
 	}
 
-	/**
-	 * Encrypts and sends a message.
-	 * @param message the message to be sent.
-	 */
-	private void sendEncryptedMessage(String message) {
-		PDU pdu = PDUFactory.makeEncryptedMessage(CryptAlgorithms.STANDARD,
-				message.getBytes(StandardCharsets.UTF_8), cryptKey);
-		pdu = PDUFactory.makeMessage(MsgTypes.CRYPT, pdu.getBytes());
-		connectionHandler.sendPDU(pdu);
-	}
-
-	/**
-	 * Sends a message.
-	 * @param message the message to be sent.
-	 */
-	private void sendPlainMessage(String message) {
-		PDU pdu = PDUFactory.makeMessage(MsgTypes.TEXT, message.getBytes(
-				StandardCharsets.UTF_8));
-		connectionHandler.sendPDU(pdu);
-	}
-
 	/**
 	 * Help function to display an error message when convenient for the Swing
 	 * thread.
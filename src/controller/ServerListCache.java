@@ -0,0 +1,236 @@
+package controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import model.ChatServer;
+
+/**
+ * Caches the chat server list of the name servers.
+ *
+ * A list younger than the time to live is served as it is. An older one is
+ * still served right away, while a fresh one is fetched in the background.
+ * Only when there is no list at all does the caller have to wait for one.
+ * However many callers ask at once, at most one fetch is in flight, and
+ * they all share its result. Every time a fetched list differs from the
+ * one before, it is published on the change bus.
+ * @author c12mkn
+ *
+ */
+public class ServerListCache {
+	public static final long DEFAULT_TIME_TO_LIVE = 30000;
+
+	private NameServerConnection connection;
+	private TaskExecutor executor;
+	private EventBus<List<ChatServer>> changeBus;
+	private volatile long timeToLive;
+
+	/*Guarded by the cache itself.*/
+	private List<ChatServer> chatServers;
+	private long fetched;
+	private boolean fetching;
+	private Exception lastError;
+	private long fetches;
+	private long hits;
+
+	/**
+	 * Constructs a ServerListCache with the default time to live.
+	 * @param connection the connection to the name servers.
+	 */
+	public ServerListCache(NameServerConnection connection) {
+		this(connection, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Constructs a ServerListCache.
+	 * @param connection the connection to the name servers.
+	 * @param timeToLive how long a list is fresh, in milliseconds.
+	 */
+	public ServerListCache(NameServerConnection connection, long timeToLive) {
+		this.connection = connection;
+		this.timeToLive = timeToLive;
+		executor = TaskExecutor.getDefault();
+		changeBus = new EventBus<List<ChatServer>>("Server list changes");
+	}
+
+	/**
+	 * Returns the bus the server list is published on every time it
+	 * changes. The lists are unmodifiable.
+	 * @return the change bus.
+	 */
+	public EventBus<List<ChatServer>> getChangeBus() {
+		return changeBus;
+	}
+
+	/**
+	 * Sets how long a fetched list is served without fetching a new one.
+	 * @param timeToLive the time to live in milliseconds.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns the server list, waiting for one only if none has been
+	 * fetched yet. A stale list is returned as it is, and refreshed in the
+	 * background.
+	 * @return an unmodifiable list of chat servers.
+	 * @throws Exception if there was no list and none could be fetched.
+	 */
+	public synchronized List<ChatServer> getServerList() throws Exception {
+		if (chatServers != null) {
+			hits++;
+			refreshIfStale();
+			return chatServers;
+		}
+
+		refresh();
+		while (fetching) {
+			wait();
+		}
+		if (chatServers == null) {
+			throw new IOException("Couldn't fetch the server list",
+					lastError);
+		}
+		return chatServers;
+	}
+
+	/**
+	 * Returns the server list if there is one, without ever waiting. A
+	 * stale list is refreshed in the background.
+	 * @return an unmodifiable list of chat servers, or null if none has
+	 * been fetched yet.
+	 */
+	public synchronized List<ChatServer> getCachedServerList() {
+		if (chatServers != null) {
+			hits++;
+			refreshIfStale();
+		}
+		return chatServers;
+	}
+
+	/**
+	 * Starts fetching a new list in the background, unless a fetch is
+	 * already in flight.
+	 */
+	public synchronized void refresh() {
+		if (fetching) {
+			return;
+		}
+		fetching = true;
+		fetches++;
+		if (executor.submit("Server list refresh", new Runnable() {
+			@Override
+			public void run() {
+				fetch();
+			}
+		}) == null) {
+
+			/*Shut down, there will be no list.*/
+			fetching = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Makes the list stale, so the next request refreshes it.
+	 */
+	public synchronized void invalidate() {
+		fetched = 0;
+	}
+
+	/**
+	 * Returns the number of fetches started.
+	 * @return the number of fetches.
+	 */
+	public synchronized long getFetches() {
+		return fetches;
+	}
+
+	/**
+	 * Returns the number of requests served from the cache.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ServerListCache[servers=" + (chatServers == null ? "none" :
+				chatServers.size()) + ", fetching=" + fetching + ", fetches=" +
+				fetches + ", hits=" + hits + "]";
+	}
+
+	/**
+	 * Starts a refresh if the list is older than the time to live. Must be
+	 * called while holding the lock.
+	 */
+	private void refreshIfStale() {
+		if (System.currentTimeMillis() - fetched >= timeToLive) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Fetches a list from the name servers and stores it. Run in the
+	 * background.
+	 */
+	private void fetch() {
+		List<ChatServer> fetchedServers = null;
+		Exception error = null;
+		try {
+			fetchedServers = Collections.unmodifiableList(
+					new ArrayList<ChatServer>(connection.getServerList()));
+		} catch (Exception e) {
+			error = e;
+		}
+
+		boolean changed = false;
+		synchronized (this) {
+			if (fetchedServers != null) {
+				changed = !isSame(chatServers, fetchedServers);
+				if (changed) {
+					chatServers = fetchedServers;
+				}
+				fetched = System.currentTimeMillis();
+			}
+
+			/*A failed fetch keeps serving the old list, and is retried by
+			 * the next request.*/
+			lastError = error;
+			fetching = false;
+			notifyAll();
+		}
+
+		if (changed) {
+			changeBus.publish(fetchedServers);
+		}
+	}
+
+	/**
+	 * Tells whether two server lists hold the same servers in the same
+	 * order.
+	 * @param a a list, or null.
+	 * @param b another list.
+	 * @return true if the lists are the same.
+	 */
+	private static boolean isSame(List<ChatServer> a, List<ChatServer> b) {
+		if (a == null || a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			ChatServer x = a.get(i);
+			ChatServer y = b.get(i);
+			if (x.getPort() != y.getPort() || !x.getName().equals(y.
+					getName()) || !Arrays.equals(x.getAddress(), y.
+					getAddress())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,177 @@
+package controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import model.ChatServer;
+import model.OpCodes;
+import model.PDU;
+
+/**
+ * Puts together a chat server list sent by a name server in several
+ * datagrams.
+ *
+ * Every datagram is an SLIST PDU of its own, with its sequence number in
+ * byte 1 and the number of servers in the whole list in bytes 2 and 3.
+ * Datagrams may arrive in any order and more than once. Each one is parsed
+ * as soon as it arrives and its servers are kept under its sequence
+ * number, and a bit set tells which sequence numbers have been seen, so
+ * duplicates cost a single lookup. The list is complete once all the
+ * servers have arrived with no sequence number missing in between.
+ * @author c12mkn
+ *
+ */
+public class ServerListReassembler {
+	private static final int MAX_SEQUENCES = 256;
+
+	private BitSet receivedSequences;
+	private ArrayList<List<ChatServer>> fragments;
+	private int expected;
+	private int received;
+	private long lastArrival;
+	private int duplicates;
+
+	/**
+	 * Constructs an empty ServerListReassembler.
+	 */
+	public ServerListReassembler() {
+		receivedSequences = new BitSet(MAX_SEQUENCES);
+		fragments = new ArrayList<List<ChatServer>>();
+		expected = -1;
+	}
+
+	/**
+	 * Parses a datagram of the list. Datagrams that aren't SLIST PDUs, and
+	 * the ones seen before, are ignored.
+	 * @param pdu the datagram.
+	 * @param now the current time in milliseconds.
+	 * @return true if the datagram was a new part of the list.
+	 */
+	public boolean add(PDU pdu, long now) {
+		if (pdu.length() < 4 || pdu.getByte(0) != OpCodes.SLIST) {
+			return false;
+		}
+		int sequenceNumber = pdu.getByte(1);
+		if (receivedSequences.get(sequenceNumber)) {
+			duplicates++;
+			return false;
+		}
+		receivedSequences.set(sequenceNumber);
+		expected = pdu.getShort(2);
+		lastArrival = now;
+
+		while (fragments.size() <= sequenceNumber) {
+			fragments.add(null);
+		}
+		List<ChatServer> chatServers = parse(pdu);
+		fragments.set(sequenceNumber, chatServers);
+		received += chatServers.size();
+		return true;
+	}
+
+	/**
+	 * Tells whether the whole list has arrived.
+	 * @return true if the list is complete.
+	 */
+	public boolean isComplete() {
+		return expected >= 0 && received >= expected &&
+				receivedSequences.nextClearBit(0) == fragments.size();
+	}
+
+	/**
+	 * Tells whether any part of the list has arrived.
+	 * @return true if at least one datagram has been parsed.
+	 */
+	public boolean isStarted() {
+		return expected >= 0;
+	}
+
+	/**
+	 * Returns the time the latest new datagram arrived.
+	 * @return the time in milliseconds.
+	 */
+	public long getLastArrival() {
+		return lastArrival;
+	}
+
+	/**
+	 * Returns the number of datagrams ignored for having been seen before.
+	 * @return the number of duplicates.
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Returns the servers received so far, in sequence order. At most the
+	 * number of servers announced are returned.
+	 * @return the chat servers.
+	 */
+	public ArrayList<ChatServer> getServerList() {
+		ArrayList<ChatServer> chatServers = new ArrayList<ChatServer>(
+				received);
+		for (List<ChatServer> fragment : fragments) {
+			if (fragment == null) {
+				continue;
+			}
+			for (ChatServer chatServer : fragment) {
+				if (chatServers.size() == expected) {
+					return chatServers;
+				}
+				chatServers.add(chatServer);
+			}
+		}
+		return chatServers;
+	}
+
+	/**
+	 * Parses the servers of a datagram. A server cut off by the end of the
+	 * datagram is left out.
+	 * @param pdu the datagram.
+	 * @return the chat servers.
+	 */
+	private static List<ChatServer> parse(PDU pdu) {
+		ArrayList<ChatServer> chatServers = new ArrayList<ChatServer>();
+		int offset = 4;
+
+		while (offset + 8 <= pdu.length()) {
+
+			/*Extract the information and create a chat server object from
+			 * it.*/
+			byte[] address = pdu.getSubrange(offset, 4);
+			int port = pdu.getShort(offset+4);
+			int noOfClients = pdu.getByte(offset+6);
+			int nameLength = pdu.getByte(offset+7);
+			if (offset + 8 + nameLength > pdu.length()) {
+				break;
+			}
+			String serverName = getServerName(pdu, offset+8, nameLength);
+			chatServers.add(new ChatServer(address, port, serverName + ", " +
+					noOfClients + " connected."));
+			offset += 8 + Client.getPaddedLength(nameLength);
+		}
+
+		return chatServers;
+	}
+
+	/**
+	 * Extracts the server name from a PDU given an index and the length of
+	 * the server name. The name is decoded in one go, up to the first null
+	 * byte if any.
+	 * @param pdu the PDU containing the server name.
+	 * @param startIndex the byte index in the PDU where the name starts.
+	 * @param nameLength the length of the name.
+	 * @return the server name.
+	 */
+	private static String getServerName(PDU pdu, int startIndex,
+			int nameLength) {
+		byte[] name = pdu.getSubrange(startIndex, nameLength);
+		int length = 0;
+		while (length < nameLength && name[length] != 0) {
+			length++;
+		}
+		return new String(name, 0, length, StandardCharsets.UTF_8);
+	}
+}
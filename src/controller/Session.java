@@ -0,0 +1,111 @@
+package controller;
+
+import model.ChatServer;
+import view.SessionPanel;
+
+/**
+ * The state of the client on one chat server: its connection, the
+ * Executor handling its PDUs and the tab showing them.
+ *
+ * Sessions only keep what is theirs. The I/O thread, the PDU parsing and
+ * the codecs, and the threads the PDUs are handled on, are shared by all
+ * of them.
+ * @author c12mkn
+ *
+ */
+public class Session {
+	private static final int PDU_QUEUE_CAPACITY = 1024;
+
+	private SessionPanel panel;
+	private ConnectionHandler connectionHandler;
+	private Executor executor;
+	private EventBus<PDUEvent>.Subscription subscription;
+	private volatile ChatServer chatServer;
+	private volatile boolean left;
+
+	/**
+	 * Constructs a Session without a chat server.
+	 * @param nickname the nickname to join with.
+	 * @param panel the tab of the session.
+	 */
+	public Session(String nickname, SessionPanel panel) {
+		this.panel = panel;
+		executor = new Executor(panel);
+		connectionHandler = new ConnectionHandler(nickname);
+		executor.setAbortBus(connectionHandler.getAbortBus());
+		subscription = connectionHandler.subscribeToPDUs(executor,
+				TaskExecutor.getDefault().named("Executor"),
+				PDU_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Returns the tab of the session.
+	 * @return the tab.
+	 */
+	public SessionPanel getPanel() {
+		return panel;
+	}
+
+	/**
+	 * Returns the ConnectionHandler of the session.
+	 * @return the ConnectionHandler.
+	 */
+	public ConnectionHandler getConnectionHandler() {
+		return connectionHandler;
+	}
+
+	/**
+	 * Returns the Executor handling the PDUs of the session.
+	 * @return the Executor.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Returns the chat server last chosen for the session.
+	 * @return the chat server, or null if none has been chosen.
+	 */
+	public ChatServer getChatServer() {
+		return chatServer;
+	}
+
+	/**
+	 * Sets the chat server chosen for the session.
+	 * @param chatServer the chat server.
+	 */
+	public void setChatServer(ChatServer chatServer) {
+		this.chatServer = chatServer;
+	}
+
+	/**
+	 * Leaves the chat server and stops handling its PDUs.
+	 * @param timeout the longest time to wait for the quit message to be
+	 * written, in milliseconds.
+	 */
+	public void leave(long timeout) {
+		left = true;
+		connectionHandler.quit(timeout);
+		subscription.close();
+	}
+
+	/**
+	 * Tells whether the user has left the session.
+	 * @return true if the session has been left.
+	 */
+	public boolean isLeft() {
+		return left;
+	}
+
+	/**
+	 * Returns the title of a tab showing a chat server. The name server
+	 * adds the number of users to the names, which is left out.
+	 * @param chatServer the chat server.
+	 * @return the title.
+	 */
+	public static String getTitle(ChatServer chatServer) {
+		String name = chatServer.getName();
+		int end = name.lastIndexOf(", ");
+		return end > 0 ? name.substring(0, end) : name;
+	}
+}
@@ -0,0 +1,198 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import model.ChatServer;
+import view.GUI;
+import view.SessionPanel;
+
+/**
+ * Keeps the sessions of the client, one per tab. The session of the
+ * selected tab is the current one, which the text field sends to. Must
+ * only be used from the Swing thread.
+ * @author c12mkn
+ *
+ */
+public class SessionManager {
+	private static final long LEAVE_TIMEOUT = 1000;
+
+	private GUI gui;
+	private String nickname;
+	private String encryptionKey;
+	private ArrayList<Session> sessions;
+	private ReconnectSupervisor reconnectSupervisor;
+	private ConnectionPool connectionPool;
+
+	/**
+	 * Constructs a SessionManager without any sessions.
+	 * @param gui the GUI holding the tabs.
+	 * @param nickname the nickname new sessions join with.
+	 */
+	public SessionManager(GUI gui, String nickname) {
+		this.gui = gui;
+		this.nickname = nickname;
+		sessions = new ArrayList<Session>();
+	}
+
+	/**
+	 * Sets the supervisor reconnecting the sessions opened from now on when
+	 * their connections are lost.
+	 * @param reconnectSupervisor the reconnect supervisor.
+	 */
+	public void setReconnectSupervisor(ReconnectSupervisor
+			reconnectSupervisor) {
+		this.reconnectSupervisor = reconnectSupervisor;
+	}
+
+	/**
+	 * Sets the pool warming a connection to the server a session switches
+	 * away from, since the user may well switch back.
+	 * @param connectionPool the connection pool.
+	 */
+	public void setConnectionPool(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+
+	/**
+	 * Opens a new session in a new, selected tab.
+	 * @param chatServer the chat server the session is for.
+	 * @return the new session.
+	 */
+	public Session open(ChatServer chatServer) {
+		Session session = new Session(nickname, gui.addSession(Session.
+				getTitle(chatServer)));
+		session.setChatServer(chatServer);
+		if (encryptionKey != null) {
+			session.getExecutor().setEncryptionKey(encryptionKey);
+		}
+		if (reconnectSupervisor != null) {
+			reconnectSupervisor.watch(session);
+		}
+		sessions.add(session);
+		return session;
+	}
+
+	/**
+	 * Changes the chat server of a session, as shown in its tab. The server
+	 * left is warmed in the pool, unless another session is still on it.
+	 * @param session the session.
+	 * @param chatServer the new chat server.
+	 */
+	public void setChatServer(Session session, ChatServer chatServer) {
+		ChatServer previous = session.getChatServer();
+		session.setChatServer(chatServer);
+		gui.setSessionTitle(session.getPanel(), Session.getTitle(
+				chatServer));
+		if (connectionPool != null && previous != null && !previous.
+				getEndpoint().equals(chatServer.getEndpoint()) &&
+				find(previous) == null) {
+			connectionPool.prewarm(previous);
+		}
+	}
+
+	/**
+	 * Returns the session of the selected tab.
+	 * @return the current session, or null if there are no tabs.
+	 */
+	public Session getCurrent() {
+		SessionPanel panel = gui.getSelectedSession();
+		for (Session session : sessions) {
+			if (session.getPanel() == panel) {
+				return session;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the session of a chat server.
+	 * @param chatServer the chat server.
+	 * @return the session, or null if the server has no tab.
+	 */
+	public Session find(ChatServer chatServer) {
+		for (Session session : sessions) {
+			ChatServer joined = session.getChatServer();
+			if (joined != null && joined.getEndpoint().equals(chatServer.
+					getEndpoint())) {
+				return session;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Selects the tab of a session.
+	 * @param session the session.
+	 */
+	public void select(Session session) {
+		gui.getSessionTabs().setSelectedComponent(session.getPanel());
+	}
+
+	/**
+	 * Returns the open sessions.
+	 * @return a list of sessions.
+	 */
+	public List<Session> getSessions() {
+		return new ArrayList<Session>(sessions);
+	}
+
+	/**
+	 * Closes the tab of a session, and leaves its chat server in the
+	 * background.
+	 * @param session the session.
+	 */
+	public void close(final Session session) {
+		if (!sessions.remove(session)) {
+			return;
+		}
+		gui.removeSession(session.getPanel());
+		if (reconnectSupervisor != null) {
+			reconnectSupervisor.forget(session);
+		}
+		TaskExecutor.getDefault().submit("Leave " + Session.getTitle(
+				session.getChatServer()), new Runnable() {
+			@Override
+			public void run() {
+				session.leave(LEAVE_TIMEOUT);
+			}
+		});
+	}
+
+	/**
+	 * Sets the nickname of the current session, and the one new sessions
+	 * join with.
+	 * @param nickname the nickname.
+	 */
+	public void setNickname(String nickname) {
+		this.nickname = nickname;
+		Session current = getCurrent();
+		if (current != null) {
+			current.getConnectionHandler().setNickname(nickname);
+		}
+	}
+
+	/**
+	 * Sets the key messages are decrypted with, in every session.
+	 * @param encryptionKey the key.
+	 */
+	public void setEncryptionKey(String encryptionKey) {
+		this.encryptionKey = encryptionKey;
+		for (Session session : sessions) {
+			session.getExecutor().setEncryptionKey(encryptionKey);
+		}
+	}
+
+	/**
+	 * Leaves every chat server.
+	 * @param timeout the longest time to wait for the quit messages to be
+	 * written, in all, in milliseconds.
+	 */
+	public void leaveAll(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Session session : sessions) {
+			session.leave(Math.max(0, deadline - System.currentTimeMillis()));
+		}
+		sessions.clear();
+	}
+}
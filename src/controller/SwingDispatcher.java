@@ -0,0 +1,242 @@
+package controller;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import view.SessionPanel;
+import view.UserListModel;
+
+/**
+ * Batches the changes the client makes to the GUI from other threads.
+ *
+ * Appended lines and user list operations are only collected when they
+ * happen. At most once per frame they are all handed to the Swing thread
+ * in one go: the lines as a single append and the user list as a single
+ * batch. A burst of thousands of changes, such as joining a large server,
+ * costs the Swing thread one task instead of thousands. There is one
+ * dispatcher per tab.
+ * @author c12mkn
+ *
+ */
+public class SwingDispatcher {
+	private static final int FRAME_INTERVAL = 16;
+
+	private SessionPanel panel;
+	private UserListModel userListModel;
+	private Timer timer;
+	private Runnable flushTask;
+
+	/*Guarded by the dispatcher itself.*/
+	private ArrayList<String> pendingLines;
+	private boolean clearText;
+	private ArrayList<UserListModel.Operation> pendingOperations;
+	private boolean flushScheduled;
+
+	/*Only written by the Swing thread.*/
+	private volatile long lastFlush;
+	private volatile long flushes;
+	private volatile long changes;
+
+	/**
+	 * Constructs a SwingDispatcher.
+	 * @param panel the tab whose messages and user list are changed.
+	 */
+	public SwingDispatcher(SessionPanel panel) {
+		this.panel = panel;
+		userListModel = panel.getUserListModel();
+		pendingLines = new ArrayList<String>();
+		pendingOperations = new ArrayList<UserListModel.Operation>();
+		flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		timer = new Timer(FRAME_INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				flush();
+			}
+		});
+		timer.setRepeats(false);
+	}
+
+	/**
+	 * Appends a line to the text area.
+	 * @param line the line, without a line break.
+	 */
+	public void append(String line) {
+		boolean schedule;
+		synchronized (this) {
+			pendingLines.add(line);
+			schedule = markScheduled();
+		}
+		schedule(schedule);
+	}
+
+	/**
+	 * Clears the text area, along with any lines appended before.
+	 */
+	public void clearText() {
+		boolean schedule;
+		synchronized (this) {
+			pendingLines.clear();
+			clearText = true;
+			schedule = markScheduled();
+		}
+		schedule(schedule);
+	}
+
+	/**
+	 * Adds a user to the user list.
+	 * @param nickname the nickname of the user.
+	 */
+	public void addUser(String nickname) {
+		addOperation(new UserListModel.Operation(UserListModel.ADD,
+				nickname));
+	}
+
+	/**
+	 * Removes a user from the user list.
+	 * @param nickname the nickname of the user.
+	 */
+	public void removeUser(String nickname) {
+		addOperation(new UserListModel.Operation(UserListModel.REMOVE,
+				nickname));
+	}
+
+	/**
+	 * Clears the user list.
+	 */
+	public void clearUsers() {
+		boolean schedule;
+		synchronized (this) {
+
+			/*Nothing before a clear matters.*/
+			pendingOperations.clear();
+			pendingOperations.add(new UserListModel.Operation(
+					UserListModel.CLEAR, null));
+			schedule = markScheduled();
+		}
+		schedule(schedule);
+	}
+
+	/**
+	 * Replaces the user list with the given users. The model applies only
+	 * the difference.
+	 * @param nicknames the nicknames of the users.
+	 */
+	public void setUsers(List<String> nicknames) {
+		boolean schedule;
+		synchronized (this) {
+
+			/*Nothing before the new list matters.*/
+			pendingOperations.clear();
+			pendingOperations.add(new UserListModel.Operation(
+					UserListModel.CLEAR, null));
+			for (String nickname : nicknames) {
+				pendingOperations.add(new UserListModel.Operation(
+						UserListModel.ADD, nickname));
+			}
+			schedule = markScheduled();
+		}
+		schedule(schedule);
+	}
+
+	/**
+	 * Returns the number of times changes have been handed to the GUI.
+	 * @return the number of flushes.
+	 */
+	public long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Returns the number of lines and user list operations handed to the
+	 * GUI.
+	 * @return the number of changes.
+	 */
+	public long getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Queues a user list operation.
+	 * @param operation the operation.
+	 */
+	private void addOperation(UserListModel.Operation operation) {
+		boolean schedule;
+		synchronized (this) {
+			pendingOperations.add(operation);
+			schedule = markScheduled();
+		}
+		schedule(schedule);
+	}
+
+	/**
+	 * Marks a flush as scheduled. Must be called while holding the lock.
+	 * @return true if the caller should schedule the flush.
+	 */
+	private boolean markScheduled() {
+		if (flushScheduled) {
+			return false;
+		}
+		flushScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Schedules a flush for the next frame, or right away if the last one
+	 * was at least a frame ago.
+	 * @param schedule false if a flush is already scheduled.
+	 */
+	private void schedule(boolean schedule) {
+		if (!schedule) {
+			return;
+		}
+		long wait = lastFlush + FRAME_INTERVAL - System.currentTimeMillis();
+		if (wait <= 0) {
+			SwingUtilities.invokeLater(flushTask);
+		} else {
+			timer.setInitialDelay((int) wait);
+			timer.restart();
+		}
+	}
+
+	/**
+	 * Hands everything collected to the GUI. Runs on the Swing thread.
+	 */
+	private void flush() {
+		ArrayList<String> lines;
+		boolean clear;
+		ArrayList<UserListModel.Operation> operations;
+		synchronized (this) {
+			lines = pendingLines;
+			pendingLines = new ArrayList<String>();
+			clear = clearText;
+			clearText = false;
+			operations = pendingOperations;
+			pendingOperations = new ArrayList<UserListModel.Operation>();
+			flushScheduled = false;
+		}
+		lastFlush = System.currentTimeMillis();
+		flushes++;
+
+		if (clear) {
+			panel.clearTextArea();
+		}
+		if (!lines.isEmpty()) {
+			panel.appendLines(lines);
+			changes += lines.size();
+		}
+		if (!operations.isEmpty()) {
+			userListModel.apply(operations);
+			changes += operations.size();
+		}
+	}
+}
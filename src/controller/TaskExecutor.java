@@ -0,0 +1,331 @@
+package controller;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background work of the client, which is mostly blocking I/O.
+ *
+ * Every task gets a thread of its own. On a JVM with virtual threads they
+ * are virtual, which makes blocking cheap. Elsewhere they are daemon
+ * threads from a cached pool, so threads are reused between tasks. Tasks
+ * are named, tracked while queued or running, and may share a Semaphore to
+ * cap how many of them run at once.
+ * @author c12mkn
+ *
+ */
+public class TaskExecutor {
+	private static final String THREAD_NAME = "Client task ";
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private static TaskExecutor defaultExecutor;
+
+	private ExecutorService service;
+	private boolean virtual;
+	private ConcurrentHashMap<Runnable, String> tasks;
+	private ConcurrentHashMap<Semaphore, ConcurrentLinkedQueue<TrackedTask>>
+			waiting;
+	private AtomicLong completed;
+	private AtomicLong failed;
+
+	/**
+	 * Constructs a TaskExecutor, using virtual threads if the JVM has them.
+	 */
+	public TaskExecutor() {
+		service = newVirtualThreadExecutor();
+		virtual = service != null;
+		if (!virtual) {
+			service = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+					KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private AtomicLong count = new AtomicLong();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, THREAD_NAME +
+							count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		tasks = new ConcurrentHashMap<Runnable, String>();
+		waiting = new ConcurrentHashMap<Semaphore,
+				ConcurrentLinkedQueue<TrackedTask>>();
+		completed = new AtomicLong();
+		failed = new AtomicLong();
+	}
+
+	/**
+	 * Returns the executor shared by the whole client, creating it the
+	 * first time it's asked for.
+	 * @return the shared executor.
+	 */
+	public static synchronized TaskExecutor getDefault() {
+		if (defaultExecutor == null) {
+			defaultExecutor = new TaskExecutor();
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Runs a task in the background.
+	 * @param name a name for the task, given to its thread while it runs.
+	 * @param task the task to be run.
+	 * @return the Future of the task, or null if the executor has been
+	 * shut down.
+	 */
+	public Future<?> submit(String name, Runnable task) {
+		return submit(name, null, task);
+	}
+
+	/**
+	 * Runs a task in the background once it gets a permit from the given
+	 * Semaphore. Tasks sharing a Semaphore can't run more of them at once
+	 * than it has permits. The others wait in line without a thread, and
+	 * are started in the order they were submitted as permits come back.
+	 * @param name a name for the task, given to its thread while it runs.
+	 * @param limit a Semaphore capping the concurrency, or null for none.
+	 * @param task the task to be run.
+	 * @return the Future of the task, or null if the executor has been
+	 * shut down.
+	 */
+	public Future<?> submit(String name, Semaphore limit, Runnable task) {
+		if (service.isShutdown()) {
+			return null;
+		}
+		TrackedTask trackedTask = new TrackedTask(name, limit, task);
+		tasks.put(trackedTask, name);
+		if (limit == null) {
+			return start(trackedTask) ? trackedTask.future : null;
+		}
+
+		ConcurrentLinkedQueue<TrackedTask> queue = waiting.get(limit);
+		if (queue == null) {
+			waiting.putIfAbsent(limit,
+					new ConcurrentLinkedQueue<TrackedTask>());
+			queue = waiting.get(limit);
+		}
+		queue.add(trackedTask);
+		startWaiting(limit);
+		return trackedTask.future;
+	}
+
+	/**
+	 * Starts waiting tasks as long as there are permits for them. Called
+	 * after a task has been queued and after a permit has been given back,
+	 * so that no task is left waiting while a permit is free.
+	 * @param limit the Semaphore the tasks wait for.
+	 */
+	private void startWaiting(Semaphore limit) {
+		ConcurrentLinkedQueue<TrackedTask> queue = waiting.get(limit);
+		while (!queue.isEmpty() && limit.tryAcquire()) {
+			TrackedTask next = queue.poll();
+			if (next == null) {
+
+				/*Taken by another thread, check again with the permit back.*/
+				limit.release();
+				continue;
+			}
+			if (!start(next)) {
+				limit.release();
+			}
+		}
+	}
+
+	/**
+	 * Hands a task to a thread.
+	 * @param trackedTask the task.
+	 * @return false if the executor has been shut down.
+	 */
+	private boolean start(TrackedTask trackedTask) {
+		try {
+			service.execute(trackedTask.future);
+			return true;
+		} catch (RejectedExecutionException e) {
+			tasks.remove(trackedTask);
+			trackedTask.future.cancel(false);
+			return false;
+		}
+	}
+
+	/**
+	 * Reports a task that failed. Every failure goes to the uncaught
+	 * exception handler of the thread it happened on, as if it had ended
+	 * the thread.
+	 * @param e the exception the task threw.
+	 */
+	static void reportFailure(Throwable e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/**
+	 * Returns a view of the executor submitting every task under the same
+	 * name, for code taking a plain java.util.concurrent.Executor.
+	 * @param name a name for the tasks.
+	 * @return an Executor running its tasks on this TaskExecutor.
+	 */
+	public java.util.concurrent.Executor named(final String name) {
+		return new java.util.concurrent.Executor() {
+			@Override
+			public void execute(Runnable task) {
+				submit(name, task);
+			}
+		};
+	}
+
+	/**
+	 * Tells whether the tasks run on virtual threads.
+	 * @return true if virtual threads are used.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Returns the names of the tasks queued or running.
+	 * @return a list of task names.
+	 */
+	public List<String> getTaskNames() {
+		return new ArrayList<String>(tasks.values());
+	}
+
+	/**
+	 * Returns the number of tasks queued or running.
+	 * @return the number of active tasks.
+	 */
+	public int getActiveCount() {
+		return tasks.size();
+	}
+
+	/**
+	 * Returns the number of tasks run to completion.
+	 * @return the number of completed tasks.
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns the number of tasks that ended by throwing an exception.
+	 * @return the number of failed tasks.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Stops accepting tasks, interrupts the running ones and waits for them
+	 * to end.
+	 * @param timeout the longest time to wait, in milliseconds.
+	 * @return true if every task ended in time.
+	 */
+	public boolean shutdown(long timeout) {
+		service.shutdownNow();
+		for (ConcurrentLinkedQueue<TrackedTask> queue : waiting.values()) {
+			TrackedTask trackedTask;
+			while ((trackedTask = queue.poll()) != null) {
+				tasks.remove(trackedTask);
+				trackedTask.future.cancel(false);
+			}
+		}
+		try {
+			return service.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TaskExecutor[virtual=" + virtual + ", active=" +
+				getTaskNames() + ", completed=" + getCompleted() +
+				", failed=" + getFailed() + "]";
+	}
+
+	/**
+	 * A task together with its name, the Semaphore it holds a permit of
+	 * while it runs, and the Future running it.
+	 * @author c12mkn
+	 *
+	 */
+	private class TrackedTask implements Runnable {
+		private String name;
+		private Semaphore limit;
+		private Runnable task;
+		private FutureTask<Void> future;
+
+		/**
+		 * Constructs a TrackedTask.
+		 * @param name a name for the task.
+		 * @param limit the Semaphore it got a permit of, or null.
+		 * @param task the task to be run.
+		 */
+		private TrackedTask(String name, Semaphore limit, Runnable task) {
+			this.name = name;
+			this.limit = limit;
+			this.task = task;
+			future = new FutureTask<Void>(this, null);
+		}
+
+		@Override
+		public void run() {
+			Thread thread = Thread.currentThread();
+			String threadName = thread.getName();
+			thread.setName(name);
+			try {
+				task.run();
+				completed.incrementAndGet();
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				reportFailure(e);
+			} finally {
+				tasks.remove(this);
+				thread.setName(threadName);
+				if (limit != null) {
+					limit.release();
+					startWaiting(limit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per task. Looked up
+	 * reflectively, since virtual threads only exist in newer JVMs.
+	 * @return the executor, or null if virtual threads aren't available.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).
+					invoke(builder, THREAD_NAME, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.
+					getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Exception e) {
+
+			/*No virtual threads, or only as a preview feature.*/
+			return null;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package controller;
+
+import java.util.TimeZone;
+
+/**
+ * Formats the time stamps of PDUs as "[HH:mm:ss] " in the local time zone.
+ *
+ * The digits are written by hand, with no Date or SimpleDateFormat, and the
+ * time stamp of the latest second is cached, since many events in a row
+ * share it. Not thread safe, every thread rendering lines should have a
+ * formatter of its own.
+ * @author c12mkn
+ *
+ */
+public class TimeStampFormatter {
+	private static final int SECONDS_PER_DAY = 24*60*60;
+
+	private TimeZone timeZone;
+	private long cachedTime;
+	private char[] cached;
+
+	/**
+	 * Constructs a TimeStampFormatter using the default time zone.
+	 */
+	public TimeStampFormatter() {
+		timeZone = TimeZone.getDefault();
+		cachedTime = Long.MIN_VALUE;
+		cached = new char[] {'[', '0', '0', ':', '0', '0', ':', '0', '0', ']',
+				' '};
+	}
+
+	/**
+	 * Appends the time stamp of a time to a StringBuilder.
+	 * @param builder the StringBuilder.
+	 * @param time the time in seconds since the epoch, as sent in PDUs.
+	 * @return the StringBuilder.
+	 */
+	public StringBuilder append(StringBuilder builder, long time) {
+		if (time != cachedTime) {
+			update(time);
+		}
+		return builder.append(cached);
+	}
+
+	/**
+	 * Returns the time stamp of a time.
+	 * @param time the time in seconds since the epoch, as sent in PDUs.
+	 * @return the time stamp.
+	 */
+	public String format(long time) {
+		if (time != cachedTime) {
+			update(time);
+		}
+		return new String(cached);
+	}
+
+	/**
+	 * Writes the time stamp of a new time into the cache.
+	 * @param time the time in seconds since the epoch.
+	 */
+	private void update(long time) {
+
+		/*The offset is looked up for every new second, so daylight saving
+		 * time changes are followed.*/
+		long local = time + timeZone.getOffset(time*1000) / 1000;
+		int secondOfDay = (int) Math.floorMod(local, (long) SECONDS_PER_DAY);
+
+		writeTwoDigits(1, secondOfDay / 3600);
+		writeTwoDigits(4, secondOfDay / 60 % 60);
+		writeTwoDigits(7, secondOfDay % 60);
+		cachedTime = time;
+	}
+
+	/**
+	 * Writes a number from 0 to 99 as two digits into the cache.
+	 * @param offset the index of the first digit.
+	 * @param value the number.
+	 */
+	private void writeTwoDigits(int offset, int value) {
+		cached[offset] = (char) ('0' + value / 10);
+		cached[offset + 1] = (char) ('0' + value % 10);
+	}
+}
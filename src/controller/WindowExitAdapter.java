@@ -5,16 +5,14 @@ import java.awt.event.WindowEvent;
 
 
 public class WindowExitAdapter extends WindowAdapter {
-	private ConnectionHandler connectionHandler;
+	private SessionManager sessionManager;
 	
-	public WindowExitAdapter(ConnectionHandler connectionHandler) {
-		this.connectionHandler = connectionHandler;
+	public WindowExitAdapter(SessionManager sessionManager) {
+		this.sessionManager = sessionManager;
 	}
 	
 	@Override
 	public void windowClosing(WindowEvent e) {
-		if (connectionHandler.hasConnection()) {
-			connectionHandler.sendPDU(PDUFactory.makeQuit());
-		}
+		Client.shutdown(sessionManager);
 	}
 }
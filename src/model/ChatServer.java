@@ -39,6 +39,16 @@ public class ChatServer {
 		return port;
 	}
 
+	/**
+	 * Gets the address and port of the server as a string, which tells
+	 * servers apart whatever their names.
+	 * @return the address and port, as in "127.0.0.1:1234".
+	 */
+	public String getEndpoint() {
+		return (address[0] & 0xff) + "." + (address[1] & 0xff) + "." +
+				(address[2] & 0xff) + "." + (address[3] & 0xff) + ":" + port;
+	}
+
 	/**
 	 * Gets the name of the server
 	 * @return the name of the server.
@@ -7,4 +7,5 @@ package model;
  */
 public class CompressAlgorithms {
 	public static final int GZIP = 0;
+	public static final int LZ4 = 1;
 }
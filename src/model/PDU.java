@@ -1,5 +1,10 @@
 package model;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * A wrapper around a byte array which supports unsigned integers.
  *
@@ -35,14 +40,42 @@ package model;
  * is unsigned so it can be extracted and sent as it is to something that
  * expects unsigned values.
  *
+ * The bytes may live in a heap or a direct ByteBuffer. Use slice() and
+ * getString() to look at parts of a PDU without copying them; slices share
+ * the bytes of the PDU they were taken from and are read-only.
+ *
+ * A PDU may also borrow its array from a pool. Such a PDU is handed back to
+ * its Recycler when release() has been called once more than retain().
+ * Slices do not keep the array alive, so they must not outlive the PDU.
+ *
  * Changelog:
  *
  * 2010-10-01: Original version.
+ * 2026-10-17: Backed by a ByteBuffer, added read-only slice views.
+ * 2026-10-17: Added pooled PDUs with retain() and release().
  */
 
 public class PDU
 {
-    private byte[] rawData;
+    /**
+     * Takes back the array of a pooled PDU once it has been released.
+     */
+    public interface Recycler
+    {
+        /**
+         * Called when the last reference to a pooled PDU is released
+         * @param array the array the PDU was created on
+         */
+        void recycle(byte[] array);
+    }
+
+    private static final AtomicIntegerFieldUpdater<PDU> REFERENCES =
+        AtomicIntegerFieldUpdater.newUpdater(PDU.class, "references");
+
+    private ByteBuffer rawData;
+    private boolean readOnly;
+    private Recycler recycler;
+    private volatile int references;
 
     /**
      * Creates a new PDU with the specified length
@@ -50,7 +83,7 @@ public class PDU
      */
     public PDU(int length)
     {
-        this.rawData = new byte[length];
+        this.rawData = ByteBuffer.allocate(length);
     }
 
     /**
@@ -62,7 +95,44 @@ public class PDU
     public PDU(byte[] rawData, int length)
     {
         this(length);
-        System.arraycopy(rawData, 0, this.rawData, 0, length);
+        System.arraycopy(rawData, 0, this.rawData.array(), 0, length);
+    }
+
+    /**
+     * Creates a PDU on top of the remaining bytes of a buffer. The bytes are
+     * not copied, so changes to the buffer are visible in the PDU and the
+     * other way around.
+     * @param buffer a heap or direct buffer holding the PDU
+     */
+    public PDU(ByteBuffer buffer)
+    {
+        this.rawData = buffer.slice();
+        this.readOnly = buffer.isReadOnly();
+    }
+
+    /**
+     * Creates a pooled PDU on the first bytes of an array. The bytes are
+     * not copied and the array is handed to the recycler when the PDU is
+     * released.
+     * @param array an array borrowed from a pool
+     * @param length size of PDU measured in bytes
+     * @param recycler the object taking the array back
+     */
+    public PDU(byte[] array, int length, Recycler recycler)
+    {
+        this.rawData = ByteBuffer.wrap(array, 0, length).slice();
+        this.recycler = recycler;
+        this.references = 1;
+    }
+
+    /**
+     * Creates a new PDU with the specified length in a direct buffer
+     * @param length size of PDU measured in bytes
+     * @return the new PDU
+     */
+    public static PDU allocateDirect(int length)
+    {
+        return new PDU(ByteBuffer.allocateDirect(length));
     }
 
     /**
@@ -73,7 +143,7 @@ public class PDU
      */
     public short getByte(int offset)
     {
-        return (short) (this.rawData[offset] & 0xFF);
+        return (short) (this.rawData.get(offset) & 0xFF);
     }
 
     /**
@@ -84,7 +154,8 @@ public class PDU
      */
     public void setByte(int offset, byte theByte)
     {
-        this.rawData[offset] = theByte;
+        checkWritable();
+        this.rawData.put(offset, theByte);
     }
 
     /**
@@ -95,10 +166,7 @@ public class PDU
      */
     public int getShort(int offset)
     {
-        int b0 = this.rawData[offset]   & 0xFF;
-        int b1 = this.rawData[offset+1] & 0xFF;
-
-        return b0 << 010 | b1;
+        return this.rawData.getShort(offset) & 0xFFFF;
     }
 
     /**
@@ -109,8 +177,8 @@ public class PDU
      */
     public void setShort(int offset, short theShort)
     {
-        this.rawData[offset]   = (byte) ((theShort & 0xFF00) >> 010);
-        this.rawData[offset+1] = (byte)  (theShort & 0x00FF);
+        checkWritable();
+        this.rawData.putShort(offset, theShort);
     }
 
     /**
@@ -121,12 +189,7 @@ public class PDU
      */
     public long getInt(int offset)
     {
-        long b0 = this.rawData[offset]   & 0xFF;
-        long b1 = this.rawData[offset+1] & 0xFF;
-        long b2 = this.rawData[offset+2] & 0xFF;
-        long b3 = this.rawData[offset+3] & 0xFF;
-
-        return b0 << 030 | b1 << 020 | b2 << 010 | b3;
+        return this.rawData.getInt(offset) & 0xFFFFFFFFL;
     }
 
     /**
@@ -137,14 +200,13 @@ public class PDU
      */
     public void setInt(int offset, int theInt)
     {
-        this.rawData[offset]   = (byte) ((theInt & 0xFF000000) >> 030);
-        this.rawData[offset+1] = (byte) ((theInt & 0x00FF0000) >> 020);
-        this.rawData[offset+2] = (byte) ((theInt & 0x0000FF00) >> 010);
-        this.rawData[offset+3] = (byte)  (theInt & 0x000000FF);
+        checkWritable();
+        this.rawData.putInt(offset, theInt);
     }
 
     /**
-     * Reads a byte array at the given subrange
+     * Reads a byte array at the given subrange. The bytes are copied, use
+     * slice() or getString() on paths where that matters.
      * @param offset a non-negative number of bytes that specifies where
      *    the subrange begins
      * @param length a non-negative number of bytes to read
@@ -152,8 +214,16 @@ public class PDU
      */
     public byte[] getSubrange(int offset, int length)
     {
+        checkRange(offset, length);
         byte[] subrange = new byte[length];
-        System.arraycopy(this.rawData, offset, subrange, 0, length);
+        if (this.rawData.hasArray()) {
+            System.arraycopy(this.rawData.array(),
+                this.rawData.arrayOffset() + offset, subrange, 0, length);
+        } else {
+            ByteBuffer source = this.rawData.duplicate();
+            source.position(offset);
+            source.get(subrange);
+        }
 
         return subrange;
     }
@@ -166,8 +236,101 @@ public class PDU
      */
     public void setSubrange(int offset, byte[] subrange)
     {
-        System.arraycopy(subrange, 0, this.rawData, offset,
-            subrange.length);
+        checkWritable();
+        checkRange(offset, subrange.length);
+        if (this.rawData.hasArray()) {
+            System.arraycopy(subrange, 0, this.rawData.array(),
+                this.rawData.arrayOffset() + offset, subrange.length);
+        } else {
+            ByteBuffer target = this.rawData.duplicate();
+            target.position(offset);
+            target.put(subrange);
+        }
+    }
+
+    /**
+     * Copies the bytes of another PDU into this one at the given offset
+     * @param offset a non-negative number of bytes that specifies where
+     *    to write
+     * @param source the PDU whose bytes should be written
+     */
+    public void setSubrange(int offset, PDU source)
+    {
+        checkWritable();
+        checkRange(offset, source.length());
+        ByteBuffer target = this.rawData.duplicate();
+        target.position(offset);
+        target.put(source.rawData.duplicate());
+    }
+
+    /**
+     * Decodes a UTF-8 string at the given subrange without first copying
+     * the bytes into a temporary array.
+     * @param offset a non-negative number of bytes that specifies where
+     *    the string begins
+     * @param length a non-negative number of bytes to decode
+     * @return the decoded string
+     */
+    public String getString(int offset, int length)
+    {
+        checkRange(offset, length);
+        if (this.rawData.hasArray()) {
+            return new String(this.rawData.array(),
+                this.rawData.arrayOffset() + offset, length,
+                StandardCharsets.UTF_8);
+        }
+
+        return new String(getSubrange(offset, length),
+            StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a read-only view of a part of the PDU. No bytes are copied,
+     * the slice reads straight from this PDU's buffer.
+     * @param offset a non-negative number of bytes that specifies where
+     *    the slice begins
+     * @param length a non-negative length of the slice in bytes
+     * @return a PDU viewing the given subrange
+     */
+    public PDU slice(int offset, int length)
+    {
+        checkRange(offset, length);
+        ByteBuffer view = this.rawData.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+
+        PDU slice = new PDU(view);
+        slice.readOnly = true;
+        return slice;
+    }
+
+    /**
+     * Returns a buffer viewing the bytes of the PDU, with position 0 and
+     * limit length(). The buffer is read-only if the PDU is.
+     * @return a buffer sharing the bytes of the PDU
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        return this.readOnly ? this.rawData.asReadOnlyBuffer() :
+            this.rawData.duplicate();
+    }
+
+    /**
+     * Tells whether the PDU can be written to
+     * @return true if the PDU is a read-only view, else false
+     */
+    public boolean isReadOnly()
+    {
+        return this.readOnly;
+    }
+
+    /**
+     * Tells whether the PDU lives in a direct buffer
+     * @return true if the PDU is backed by a direct buffer, else false
+     */
+    public boolean isDirect()
+    {
+        return this.rawData.isDirect();
     }
 
     /**
@@ -176,7 +339,7 @@ public class PDU
      */
     public int length()
     {
-        return this.rawData.length;
+        return this.rawData.capacity();
     }
 
     /**
@@ -185,12 +348,16 @@ public class PDU
      */
     public void extendTo(int length)
     {
-        byte[] newArray = new byte[length];
-        length = (length < this.rawData.length) ? length :
-            this.rawData.length;
+        checkWritable();
+        ByteBuffer newBuffer = this.rawData.isDirect() ?
+            ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        ByteBuffer oldBuffer = this.rawData.duplicate();
+        oldBuffer.limit((length < oldBuffer.capacity()) ? length :
+            oldBuffer.capacity());
 
-        System.arraycopy(this.rawData, 0, newArray, 0, length);
-        this.rawData = newArray;
+        newBuffer.put(oldBuffer);
+        newBuffer.clear();
+        this.rawData = newBuffer;
     }
 
     /**
@@ -199,9 +366,53 @@ public class PDU
      */
     public byte[] getBytes()
     {
-        byte[] newArray = new byte[this.rawData.length];
-        System.arraycopy(this.rawData, 0, newArray, 0, this.rawData.length);
+        return getSubrange(0, length());
+    }
+
+    /**
+     * Adds a reference to a pooled PDU, keeping it from being recycled
+     * until release() has been called once more. Does nothing for PDUs that
+     * are not pooled.
+     * @return this PDU
+     */
+    public PDU retain()
+    {
+        if (this.recycler != null) {
+            REFERENCES.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference to a pooled PDU and hands its array back to the
+     * pool when no references are left. Does nothing for PDUs that are not
+     * pooled. The PDU must not be used after its last release.
+     */
+    public void release()
+    {
+        if (this.recycler != null && REFERENCES.decrementAndGet(this) == 0) {
+            this.recycler.recycle(this.rawData.array());
+        }
+    }
+
+    /**
+     * Throws if the PDU is a read-only view
+     */
+    private void checkWritable()
+    {
+        if (this.readOnly) {
+            throw new ReadOnlyBufferException();
+        }
+    }
 
-        return newArray;
+    /**
+     * Throws if the given subrange does not lie within the PDU
+     */
+    private void checkRange(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > length()) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" +
+                length + " outside PDU of length " + length());
+        }
     }
 }
@@ -3,21 +3,20 @@ package view;
 import java.awt.BorderLayout;
 
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JFrame;
-import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 
 /**
- * The GUI class of the chat client, extending on the JFrame class.
+ * The GUI class of the chat client, extending on the JFrame class. Every
+ * chat server joined has a tab of its own, and the text field sends to the
+ * server of the selected tab.
  * @author c12mkn
  *
  */
@@ -25,24 +24,23 @@ public class GUI extends JFrame {
 	private static final long serialVersionUID = 1L;
 
 	private JMenuItem serverList;
+	private JMenuItem newSession;
+	private JMenuItem leaveServer;
 	private JMenuItem changeName;
 	private JMenuItem encryptionKey;
 	private JMenuItem exit;
 
 	private JButton send;
-	private JTextArea textArea;
+	private JTabbedPane sessions;
 	private JTextField textField;
 
 	private JCheckBox encrypt;
 	private JCheckBox compress;
-	
-	private JList<String> userList;
 
 	/**
-	 * Constructs a GUI object.
-	 * @param userListModel a list model for the user list.
+	 * Constructs a GUI object without any tabs.
 	 */
-	public GUI(DefaultListModel<String> userListModel) {
+	public GUI() {
 		super("Chat client");
 
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -53,21 +51,15 @@ public class GUI extends JFrame {
 		JMenuBar menuBar = new JMenuBar();
 		JMenu menu = new JMenu("Menu");
 		menu.add(serverList = new JMenuItem("List servers"));
+		menu.add(newSession = new JMenuItem("Join server in new tab"));
+		menu.add(leaveServer = new JMenuItem("Leave server"));
 		menu.add(changeName = new JMenuItem("Change nickname"));
 		menu.add(encryptionKey = new JMenuItem("Encryption key"));
 		menu.add(exit = new JMenuItem("Exit"));
 		menuBar.add(menu);
 		setJMenuBar(menuBar);
 		
-		userList = new JList<String>(userListModel);
-		add(new JScrollPane(userList), BorderLayout.WEST);
-
-		textArea = new JTextArea();
-		textArea.setEditable(false);
-		textArea.setLineWrap(true);
-		JScrollPane scrollPane = new JScrollPane(textArea);
-		scrollPane.setAutoscrolls(true);
-		add(scrollPane, BorderLayout.CENTER);
+		add(sessions = new JTabbedPane(), BorderLayout.CENTER);
 		add(textField = new JTextField(), BorderLayout.SOUTH);
 
 		JPanel panel = new JPanel();
@@ -89,6 +81,22 @@ public class GUI extends JFrame {
 		return serverList;
 	}
 
+	/**
+	 * Returns the menu item joining a server in a new tab.
+	 * @return the new tab menu item.
+	 */
+	public JMenuItem getNewSessionItem() {
+		return newSession;
+	}
+
+	/**
+	 * Returns the leave server menu item.
+	 * @return the leave server menu item.
+	 */
+	public JMenuItem getLeaveServerItem() {
+		return leaveServer;
+	}
+
 	/**
 	 * Returns the change nickname menu item.
 	 * @return the change nickname menu item.
@@ -148,17 +156,50 @@ public class GUI extends JFrame {
 	}
 
 	/**
-	 * appends the text area.
-	 * @param appendage a piece of text to be appended.
+	 * Returns the tabs of the chat servers.
+	 * @return the tabbed pane.
+	 */
+	public JTabbedPane getSessionTabs() {
+		return sessions;
+	}
+
+	/**
+	 * Adds a tab for a chat server and selects it.
+	 * @param title the title of the tab.
+	 * @return the new tab.
+	 */
+	public SessionPanel addSession(String title) {
+		SessionPanel panel = new SessionPanel();
+		sessions.addTab(title, panel);
+		sessions.setSelectedComponent(panel);
+		return panel;
+	}
+
+	/**
+	 * Changes the title of a tab.
+	 * @param panel the tab.
+	 * @param title the new title.
+	 */
+	public void setSessionTitle(SessionPanel panel, String title) {
+		int index = sessions.indexOfComponent(panel);
+		if (index != -1) {
+			sessions.setTitleAt(index, title);
+		}
+	}
+
+	/**
+	 * Removes the tab of a chat server.
+	 * @param panel the tab.
 	 */
-	public void appendTextArea(String appendage) {
-		textArea.append(appendage + "\n");
+	public void removeSession(SessionPanel panel) {
+		sessions.remove(panel);
 	}
 
 	/**
-	 * Clears the text area.
+	 * Returns the selected tab.
+	 * @return the selected tab, or null if there are none.
 	 */
-	public void clearTextArea() {
-		textArea.setText("");
+	public SessionPanel getSelectedSession() {
+		return (SessionPanel) sessions.getSelectedComponent();
 	}
 }
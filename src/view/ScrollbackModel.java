@@ -0,0 +1,277 @@
+package view;
+
+import java.awt.FontMetrics;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * A list model holding the latest lines of the chat in a ring of fixed
+ * capacity. Once the ring is full, every added line evicts the oldest one,
+ * so memory use and the cost of an append stay the same however long the
+ * client runs. Must only be used from the Swing thread.
+ *
+ * The elements of the model are rows rather than lines. Given a width to
+ * wrap at, a line wider than it is wrapped into several rows, at a space
+ * if there is one. All rows then have the same height, so the list can
+ * still render only the rows in view.
+ * @author c12mkn
+ *
+ */
+public class ScrollbackModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+	private static final int INITIAL_ROWS = 64;
+
+	private String[] lines;
+	private int[] rowCounts;
+	private int start;
+	private int size;
+
+	private String[] rows;
+	private int rowStart;
+	private int rowCount;
+
+	private transient FontMetrics metrics;
+	private int wrapWidth;
+
+	/**
+	 * Constructs an empty ScrollbackModel.
+	 * @param capacity the number of lines kept.
+	 */
+	public ScrollbackModel(int capacity) {
+		lines = new String[capacity];
+		rowCounts = new int[capacity];
+		rows = new String[Math.min(capacity, INITIAL_ROWS)];
+	}
+
+	@Override
+	public int getSize() {
+		return rowCount;
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		if (index < 0 || index >= rowCount) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		return rows[(rowStart + index) % rows.length];
+	}
+
+	/**
+	 * Returns the number of lines kept.
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return lines.length;
+	}
+
+	/**
+	 * Sets the width lines are wrapped at, and wraps the kept lines again
+	 * if it changed.
+	 * @param metrics the metrics of the font the rows are shown in.
+	 * @param wrapWidth the width in pixels, 0 or less not to wrap.
+	 */
+	public void setWrapWidth(FontMetrics metrics, int wrapWidth) {
+		if (metrics == this.metrics && wrapWidth == this.wrapWidth) {
+			return;
+		}
+		this.metrics = metrics;
+		this.wrapWidth = wrapWidth;
+
+		int oldRowCount = rowCount;
+		removeRows(rowCount);
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % lines.length;
+			rowCounts[index] = addRows(lines[index]);
+		}
+		if (oldRowCount > 0) {
+			fireIntervalRemoved(this, 0, oldRowCount - 1);
+		}
+		if (rowCount > 0) {
+			fireIntervalAdded(this, 0, rowCount - 1);
+		}
+	}
+
+	/**
+	 * Adds a piece of text, one line per line of it.
+	 * @param text the text.
+	 * @return the number of rows evicted from the start.
+	 */
+	public int add(String text) {
+		int oldRowCount = rowCount;
+		int evicted = addLines(text);
+		return fireAdded(oldRowCount, evicted);
+	}
+
+	/**
+	 * Adds pieces of text, one line per line of them, with a single event
+	 * for each kind of change.
+	 * @param texts the pieces of text.
+	 * @return the number of rows evicted from the start.
+	 */
+	public int addAll(List<String> texts) {
+		int oldRowCount = rowCount;
+		int evicted = 0;
+		for (String text : texts) {
+			evicted += addLines(text);
+		}
+		return fireAdded(oldRowCount, evicted);
+	}
+
+	/**
+	 * Removes all lines.
+	 */
+	public void clear() {
+		int oldRowCount = rowCount;
+		for (int i = 0; i < size; i++) {
+			lines[(start + i) % lines.length] = null;
+		}
+		start = 0;
+		size = 0;
+		removeRows(rowCount);
+		rowStart = 0;
+		if (oldRowCount > 0) {
+			fireIntervalRemoved(this, 0, oldRowCount - 1);
+		}
+	}
+
+	/**
+	 * Adds the lines of a piece of text to the ring.
+	 * @param text the text.
+	 * @return the number of rows evicted to make room.
+	 */
+	private int addLines(String text) {
+		int evicted = 0;
+		int lineStart = 0;
+		while (true) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			String line = lineEnd == -1 ? text.substring(lineStart) :
+					text.substring(lineStart, lineEnd);
+
+			int index;
+			if (size == lines.length) {
+				index = start;
+				evicted += rowCounts[index];
+				removeRows(rowCounts[index]);
+				start = (start + 1) % lines.length;
+			} else {
+				index = (start + size) % lines.length;
+				size++;
+			}
+			lines[index] = line;
+			rowCounts[index] = addRows(line);
+
+			if (lineEnd == -1) {
+				return evicted;
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Wraps a line and adds its rows to the end.
+	 * @param line the line.
+	 * @return the number of rows added.
+	 */
+	private int addRows(String line) {
+		if (metrics == null || wrapWidth <= 0) {
+			addRow(line);
+			return 1;
+		}
+
+		int count = 0;
+		int from = 0;
+		while (true) {
+			int to = findRowEnd(line, from);
+			addRow(line.substring(from, to));
+			count++;
+
+			/*The space a row was broken at starts no row.*/
+			from = to < line.length() && line.charAt(to) == ' ' ? to + 1 : to;
+			if (from == line.length()) {
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * Finds where a row starting at a given position of a line ends. It
+	 * ends at the last space that fits, or where the width runs out if
+	 * there is none, but always holds at least one character.
+	 * @param line the line.
+	 * @param from the start of the row.
+	 * @return the end of the row, exclusive.
+	 */
+	private int findRowEnd(String line, int from) {
+		int width = 0;
+		int lastSpace = -1;
+		for (int i = from; i < line.length(); i++) {
+			char c = line.charAt(i);
+			width += metrics.charWidth(c);
+			if (width > wrapWidth && i > from) {
+				if (lastSpace > from) {
+					return lastSpace;
+				}
+
+				/*Don't split a surrogate pair.*/
+				return Character.isLowSurrogate(c) && i - 1 > from ? i - 1 :
+						i;
+			}
+			if (c == ' ') {
+				lastSpace = i;
+			}
+		}
+		return line.length();
+	}
+
+	/**
+	 * Adds a row to the end, growing the rows if needed.
+	 * @param row the row.
+	 */
+	private void addRow(String row) {
+		if (rowCount == rows.length) {
+			String[] grown = new String[rows.length * 2];
+			for (int i = 0; i < rowCount; i++) {
+				grown[i] = rows[(rowStart + i) % rows.length];
+			}
+			rows = grown;
+			rowStart = 0;
+		}
+		rows[(rowStart + rowCount) % rows.length] = row;
+		rowCount++;
+	}
+
+	/**
+	 * Removes rows from the start.
+	 * @param count the number of rows.
+	 */
+	private void removeRows(int count) {
+		for (int i = 0; i < count; i++) {
+			rows[(rowStart + i) % rows.length] = null;
+		}
+		rowStart = (rowStart + count) % rows.length;
+		rowCount -= count;
+	}
+
+	/**
+	 * Tells the listeners about rows added to the end and evicted from the
+	 * start.
+	 * @param oldRowCount the number of rows before the lines were added.
+	 * @param evicted the number of rows evicted.
+	 * @return the number of evicted rows the listeners had been told about.
+	 */
+	private int fireAdded(int oldRowCount, int evicted) {
+
+		/*Rows evicted that were added in the same batch were never seen by
+		 * the listeners.*/
+		int evictedOld = Math.min(evicted, oldRowCount);
+		if (evictedOld > 0) {
+			fireIntervalRemoved(this, 0, evictedOld - 1);
+		}
+		int kept = oldRowCount - evictedOld;
+		if (rowCount > kept) {
+			fireIntervalAdded(this, kept, rowCount - 1);
+		}
+		return evictedOld;
+	}
+}
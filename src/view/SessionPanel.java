@@ -0,0 +1,153 @@
+package view;
+
+import java.awt.BorderLayout;
+import java.awt.Insets;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.List;
+
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+
+/**
+ * The tab of one chat server, showing its user list and its messages.
+ * Every tab has a roster and a scrollback of its own.
+ * @author c12mkn
+ *
+ */
+public class SessionPanel extends JPanel {
+	private static final long serialVersionUID = 1L;
+	private static final int SCROLLBACK_LINES = 5000;
+	private static final int ROW_MARGIN = 4;
+
+	private UserListModel userListModel;
+	private ScrollbackModel scrollback;
+	private JList<String> messageList;
+	private JScrollPane messageScrollPane;
+
+	/**
+	 * Constructs an empty SessionPanel.
+	 */
+	public SessionPanel() {
+		super(new BorderLayout());
+
+		userListModel = new UserListModel();
+		add(new JScrollPane(new JList<String>(userListModel)),
+				BorderLayout.WEST);
+
+		/*Only the lines in view are rendered. With a fixed cell size the list
+		 * never has to measure the others. Lines are wrapped at the width
+		 * of the view instead, and wrapped again when it changes. The
+		 * vertical scroll bar is always shown, so that its coming and going
+		 * doesn't change the width.*/
+		scrollback = new ScrollbackModel(SCROLLBACK_LINES);
+		messageList = new JList<String>(scrollback);
+		messageList.setFixedCellHeight(messageList.getFontMetrics(
+				messageList.getFont()).getHeight() + 2);
+		messageList.setFixedCellWidth(1);
+		messageScrollPane = new JScrollPane(messageList,
+				JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
+				JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+		messageScrollPane.getViewport().addComponentListener(
+				new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				wrapToView();
+			}
+		});
+		add(messageScrollPane, BorderLayout.CENTER);
+	}
+
+	/**
+	 * Returns the model of the user list.
+	 * @return the user list model.
+	 */
+	public UserListModel getUserListModel() {
+		return userListModel;
+	}
+
+	/**
+	 * Appends a piece of text to the messages, one row per line of it.
+	 * @param appendage a piece of text to be appended.
+	 */
+	public void appendTextArea(String appendage) {
+		boolean atBottom = isScrolledToBottom();
+		int scrolled = getScrollValue();
+		keepInView(atBottom, scrolled, scrollback.add(appendage));
+	}
+
+	/**
+	 * Appends pieces of text to the messages, as a single change.
+	 * @param appendages the pieces of text to be appended.
+	 */
+	public void appendLines(List<String> appendages) {
+		boolean atBottom = isScrolledToBottom();
+		int scrolled = getScrollValue();
+		keepInView(atBottom, scrolled, scrollback.addAll(appendages));
+	}
+
+	/**
+	 * Clears the messages.
+	 */
+	public void clearTextArea() {
+		scrollback.clear();
+	}
+
+	/**
+	 * Tells whether the last message is in view.
+	 * @return true if the messages are scrolled to the bottom.
+	 */
+	private boolean isScrolledToBottom() {
+		JScrollBar bar = messageScrollPane.getVerticalScrollBar();
+		return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() -
+				messageList.getFixedCellHeight();
+	}
+
+	/**
+	 * Returns how far the messages are scrolled down.
+	 * @return the value of the vertical scroll bar.
+	 */
+	private int getScrollValue() {
+		return messageScrollPane.getVerticalScrollBar().getValue();
+	}
+
+	/**
+	 * Scrolls to the last message, unless the user has scrolled up to read
+	 * older ones. Those are then kept where they were, even when rows above
+	 * them were evicted.
+	 * @param atBottom whether the messages were scrolled to the bottom
+	 * before the change.
+	 * @param scrolled the value of the vertical scroll bar before the
+	 * change.
+	 * @param evicted the number of rows evicted from the start.
+	 */
+	private void keepInView(boolean atBottom, int scrolled, int evicted) {
+		if (atBottom && scrollback.getSize() > 0) {
+			messageScrollPane.validate();
+			messageList.ensureIndexIsVisible(scrollback.getSize() - 1);
+		} else if (!atBottom && evicted > 0) {
+			messageScrollPane.validate();
+			messageScrollPane.getVerticalScrollBar().setValue(Math.max(0,
+					scrolled - evicted * messageList.getFixedCellHeight()));
+		}
+	}
+
+	/**
+	 * Wraps the lines at the width of the view, leaving room for the
+	 * borders of the rows.
+	 */
+	private void wrapToView() {
+		Insets insets = messageList.getInsets();
+		int width = messageScrollPane.getViewport().getWidth() -
+				insets.left - insets.right - ROW_MARGIN;
+		if (width <= 0) {
+			return;
+		}
+		boolean atBottom = isScrolledToBottom();
+		scrollback.setWrapWidth(messageList.getFontMetrics(messageList.
+				getFont()), width);
+		keepInView(atBottom, getScrollValue(), 0);
+	}
+}
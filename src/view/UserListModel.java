@@ -0,0 +1,221 @@
+package view;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The roster of the current chat server, used as the list model of the
+ * user list.
+ *
+ * Nicknames are kept in a sorted array, which is what the list shows, with
+ * a hash index from nickname to position for lookups. The roster is
+ * changed by whole batches of operations. A batch is first reduced to its
+ * net effect per nickname, then merged into the array in one pass, and
+ * the listeners are only told about the range that differs, with at most
+ * one event per kind of change. A batch that doesn't change the roster,
+ * such as a NICKS list matching what is already known, fires no events at
+ * all. Must only be used from the Swing thread.
+ * @author c12mkn
+ *
+ */
+public class UserListModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+
+	/*The kinds of operations.*/
+	public static final int ADD = 0;
+	public static final int REMOVE = 1;
+	public static final int CLEAR = 2;
+
+	/*Sorts nicknames ignoring case, with ties broken by case.*/
+	private static final Comparator<String> ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int order = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+			return order != 0 ? order : a.compareTo(b);
+		}
+	};
+
+	private String[] users;
+	private int size;
+	private HashMap<String, Integer> index;
+
+	/**
+	 * An operation on the user list.
+	 * @author c12mkn
+	 *
+	 */
+	public static class Operation {
+		private int type;
+		private String nickname;
+
+		/**
+		 * Constructs an operation.
+		 * @param type ADD, REMOVE or CLEAR.
+		 * @param nickname the nickname to add or remove, null for CLEAR.
+		 */
+		public Operation(int type, String nickname) {
+			this.type = type;
+			this.nickname = nickname;
+		}
+	}
+
+	/**
+	 * Constructs an empty UserListModel.
+	 */
+	public UserListModel() {
+		users = new String[16];
+		index = new HashMap<String, Integer>();
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String getElementAt(int position) {
+		if (position < 0 || position >= size) {
+			throw new IndexOutOfBoundsException("Index: " + position);
+		}
+		return users[position];
+	}
+
+	/**
+	 * Tells whether a user is in the roster.
+	 * @param nickname the nickname of the user.
+	 * @return true if the user is in the roster.
+	 */
+	public boolean contains(String nickname) {
+		return index.containsKey(nickname);
+	}
+
+	/**
+	 * Returns the position of a user in the list.
+	 * @param nickname the nickname of the user.
+	 * @return the position, or -1 if the user isn't in the roster.
+	 */
+	public int indexOf(String nickname) {
+		Integer position = index.get(nickname);
+		return position != null ? position : -1;
+	}
+
+	/**
+	 * Applies a batch of operations in order, then tells the listeners
+	 * about the result.
+	 * @param operations the operations.
+	 */
+	public void apply(List<Operation> operations) {
+
+		/*Reduce the batch to whether each nickname it touches is in the
+		 * roster afterwards.*/
+		boolean cleared = false;
+		HashMap<String, Boolean> changes = new HashMap<String, Boolean>();
+		for (Operation operation : operations) {
+			switch (operation.type) {
+				case ADD:
+					changes.put(operation.nickname, Boolean.TRUE);
+					break;
+				case REMOVE:
+					changes.put(operation.nickname, Boolean.FALSE);
+					break;
+				case CLEAR:
+					cleared = true;
+					changes.clear();
+					break;
+			}
+		}
+
+		/*Collect the new nicknames, sorted.*/
+		ArrayList<String> added = new ArrayList<String>();
+		int removed = 0;
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			boolean present = !cleared && index.containsKey(change.getKey());
+			if (change.getValue() && !present) {
+				added.add(change.getKey());
+			} else if (!change.getValue() && present) {
+				removed++;
+			}
+		}
+		if (!cleared && added.isEmpty() && removed == 0) {
+			return;
+		}
+		Collections.sort(added, ORDER);
+
+		/*Merge the kept nicknames with the new ones in one pass.*/
+		int oldSize = size;
+		String[] merged = new String[Math.max(16, (cleared ? 0 : size) +
+				added.size())];
+		int count = 0;
+		int next = 0;
+		for (int i = 0; i < oldSize && !cleared; i++) {
+			String nickname = users[i];
+			if (changes.get(nickname) == Boolean.FALSE) {
+				continue;
+			}
+			while (next < added.size() && ORDER.compare(added.get(next),
+					nickname) < 0) {
+				merged[count++] = added.get(next++);
+			}
+			merged[count++] = nickname;
+		}
+		while (next < added.size()) {
+			merged[count++] = added.get(next++);
+		}
+
+		String[] old = users;
+		users = merged;
+		size = count;
+		rebuildIndex();
+		fireDifference(old, oldSize);
+	}
+
+	/**
+	 * Rebuilds the index from nickname to position.
+	 */
+	private void rebuildIndex() {
+		index.clear();
+		for (int i = 0; i < size; i++) {
+			index.put(users[i], i);
+		}
+	}
+
+	/**
+	 * Fires the events describing the change from the old array to the
+	 * current one. Only the range between their common start and common
+	 * end is reported.
+	 * @param old the array before the change.
+	 * @param oldSize the size before the change.
+	 */
+	private void fireDifference(String[] old, int oldSize) {
+		int common = Math.min(oldSize, size);
+		int prefix = 0;
+		while (prefix < common && old[prefix].equals(users[prefix])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < common - prefix && old[oldSize - 1 - suffix].equals(
+				users[size - 1 - suffix])) {
+			suffix++;
+		}
+
+		int oldChanged = oldSize - prefix - suffix;
+		int newChanged = size - prefix - suffix;
+		int replaced = Math.min(oldChanged, newChanged);
+		if (replaced > 0) {
+			fireContentsChanged(this, prefix, prefix + replaced - 1);
+		}
+		if (newChanged > oldChanged) {
+			fireIntervalAdded(this, prefix + replaced, prefix + newChanged -
+					1);
+		} else if (newChanged < oldChanged) {
+			fireIntervalRemoved(this, prefix + replaced, prefix + oldChanged -
+					1);
+		}
+	}
+}